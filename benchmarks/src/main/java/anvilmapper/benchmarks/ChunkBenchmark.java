@@ -0,0 +1,159 @@
+package anvilmapper.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import mapwriter.region.BlockColours;
+import mapwriter.region.ByteArrayDataInput;
+import mapwriter.region.ChunkToPixels;
+import mapwriter.region.MwChunk;
+import mapwriter.region.Region;
+import mapwriter.region.RegionFile;
+
+/**
+ * Reading the sample chunks from a region file, looking up their blocks and rendering them.
+ * Times are per chunk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChunkBenchmark
+{
+	private static final int CHUNKS = 22;
+
+	@Param({"raf", "channel", "mmap"})
+	public String regionIo;
+
+	private File worldDir;
+	private RegionFile regionFile;
+	private List<Fixtures.Chunk> chunks;
+	private List<MwChunk> mwChunks;
+	private BlockColours blockColours;
+	private int[] pixels;
+	private ChunkToPixels.ColumnPlanes planes;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		RegionFile.readMode = RegionFile.ReadMode.fromName(this.regionIo);
+		this.chunks = Fixtures.loadChunks();
+		this.worldDir = Fixtures.createTempDir();
+		this.regionFile = new RegionFile(Fixtures.writeRegionFile(this.worldDir, this.chunks));
+		this.regionFile.open();
+		this.mwChunks = Fixtures.readChunks(this.regionFile, this.chunks);
+		this.blockColours = Fixtures.loadBlockColours();
+		this.pixels = new int[Region.SIZE * Region.SIZE];
+		this.planes = new ChunkToPixels.ColumnPlanes(Region.SIZE * Region.SIZE);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		this.regionFile.close();
+		Fixtures.deleteRecursively(this.worldDir);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public void regionFileRead(Blackhole blackhole)
+	{
+		for (Fixtures.Chunk chunk : this.chunks)
+		{
+			ByteArrayDataInput in = this.regionFile.getChunkDataInput(chunk.x, chunk.z);
+			blackhole.consume(in.remaining());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public void compressedChunkRead(Blackhole blackhole)
+	{
+		for (Fixtures.Chunk chunk : this.chunks)
+		{
+			blackhole.consume(this.regionFile.getCompressedChunkData(chunk.x, chunk.z));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public byte[][] sectorOrderedCompressedChunkRead()
+	{
+		return this.regionFile.getAllCompressedChunkData();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public void mwChunkRead(Blackhole blackhole)
+	{
+		for (Fixtures.Chunk chunk : this.chunks)
+		{
+			blackhole.consume(MwChunk.read(chunk.x, chunk.z, chunk.dimension, this.regionFile));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public int getBlockAndMetadata()
+	{
+		int sum = 0;
+
+		for (MwChunk chunk : this.mwChunks)
+		{
+			for (int y = 0; y < 256; y++)
+			{
+				for (int z = 0; z < MwChunk.SIZE; z++)
+				{
+					for (int x = 0; x < MwChunk.SIZE; x++)
+					{
+						sum += chunk.getBlockAndMetadata(x, y, z);
+					}
+				}
+			}
+		}
+
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public int[] getMapPixels()
+	{
+		for (int i = 0; i < this.mwChunks.size(); i++)
+		{
+			// one row of chunks, so that each chunk is shaded from the chunk before it
+			ChunkToPixels.getMapPixels(this.blockColours, this.mwChunks.get(i), this.pixels, i << 4, Region.SIZE);
+		}
+
+		return this.pixels;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public int[] twoPassMapPixels()
+	{
+		// the same row of chunks as getMapPixels, with the two pass rendering on one thread
+		for (int i = 0; i < this.mwChunks.size(); i++)
+		{
+			ChunkToPixels.resolveColumns(this.blockColours, this.mwChunks.get(i), this.planes, i << 4, Region.SIZE);
+		}
+
+		for (int i = 0; i < this.mwChunks.size(); i++)
+		{
+			ChunkToPixels.shadeColumns(this.planes, this.pixels, i << 4, Region.SIZE);
+		}
+
+		return this.pixels;
+	}
+}
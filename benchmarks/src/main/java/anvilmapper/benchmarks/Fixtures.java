@@ -0,0 +1,274 @@
+package anvilmapper.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import anvilmapper.util.IdMaps;
+import anvilmapper.util.IdMaps.MapType;
+import mapwriter.region.BlockColours;
+import mapwriter.region.ChunkToPixels;
+import mapwriter.region.MwChunk;
+import mapwriter.region.Region;
+import mapwriter.region.RegionFile;
+
+/**
+ * The checked in sample data that the benchmarks run on, so that the results do not depend on a world save.
+ *
+ * chunks.dat holds 22 chunks (16 overworld, 4 nether and 2 end chunks) as stored in a region file:
+ * for each chunk the dimension, the chunk x and z within the region, the length of the payload and
+ * the zlib compressed chunk NBT payload, all big endian.
+ */
+public final class Fixtures
+{
+	private static final String RESOURCE_CHUNKS = "chunks.dat";
+	static final String RESOURCE_BLOCK_COLOURS = "MapWriterBlockColours.txt";
+	static final String RESOURCE_BLOCK_ID_MAP = "block_ids_vanilla.txt";
+	static final String RESOURCE_BIOME_ID_MAP = "biome_ids_vanilla.txt";
+
+	public static final class Chunk
+	{
+		public final int dimension;
+		public final int x;
+		public final int z;
+		public final byte[] compressed;
+
+		Chunk(int dimension, int x, int z, byte[] compressed)
+		{
+			this.dimension = dimension;
+			this.x = x;
+			this.z = z;
+			this.compressed = compressed;
+		}
+
+		public byte[] inflate() throws IOException
+		{
+			InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(this.compressed), new Inflater());
+			ByteArrayOutputStream out = new ByteArrayOutputStream(this.compressed.length * 8);
+			byte[] buffer = new byte[8192];
+			int n;
+
+			while ((n = in.read(buffer)) > 0)
+			{
+				out.write(buffer, 0, n);
+			}
+
+			in.close();
+			return out.toByteArray();
+		}
+	}
+
+	private Fixtures()
+	{
+	}
+
+	public static List<Chunk> loadChunks() throws IOException
+	{
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		DataInputStream in = new DataInputStream(openResource(RESOURCE_CHUNKS));
+
+		try
+		{
+			while (true)
+			{
+				int dimension;
+
+				try
+				{
+					dimension = in.readInt();
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+
+				int x = in.readInt();
+				int z = in.readInt();
+				byte[] compressed = new byte[in.readInt()];
+				in.readFully(compressed);
+				chunks.add(new Chunk(dimension, x, z, compressed));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return chunks;
+	}
+
+	private static InputStream openResource(String name) throws IOException
+	{
+		InputStream in = Fixtures.class.getResourceAsStream(name);
+
+		if (in == null)
+		{
+			throw new IOException("missing benchmark fixture " + name);
+		}
+
+		return in;
+	}
+
+	public static File createTempDir() throws IOException
+	{
+		File dir = File.createTempFile("anvilmapper-bench", "");
+
+		if (dir.delete() == false || dir.mkdirs() == false)
+		{
+			throw new IOException("could not create the temporary directory " + dir);
+		}
+
+		return dir;
+	}
+
+	public static void deleteRecursively(File file)
+	{
+		File[] children = file.listFiles();
+
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				deleteRecursively(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	/**
+	 * Writes the chunks to region/r.0.0.mca in the world directory, at their positions within the region.
+	 * The chunks of all dimensions go to the same file, as their positions do not overlap.
+	 */
+	public static File writeRegionFile(File worldDir, List<Chunk> chunks) throws IOException
+	{
+		int[] offsets = new int[1024];
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream bodyData = new DataOutputStream(body);
+		int sector = 2;
+
+		for (Chunk chunk : chunks)
+		{
+			int length = chunk.compressed.length + 5;
+			int sectors = (length + 4095) / 4096;
+			bodyData.writeInt(chunk.compressed.length + 1);
+			bodyData.writeByte(2);
+			bodyData.write(chunk.compressed);
+			bodyData.write(new byte[(sectors * 4096) - length]);
+			offsets[(chunk.z << 5) | chunk.x] = (sector << 8) | sectors;
+			sector += sectors;
+		}
+
+		File regionDir = new File(worldDir, "region");
+		regionDir.mkdirs();
+		File file = new File(regionDir, "r.0.0.mca");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+
+		try
+		{
+			for (int offset : offsets)
+			{
+				out.writeInt(offset);
+			}
+
+			// the chunk timestamps
+			out.write(new byte[4096]);
+			body.writeTo(out);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		return file;
+	}
+
+	static File copyResourceToTempFile(String name) throws IOException
+	{
+		File file = File.createTempFile("anvilmapper-bench", ".txt");
+		InputStream in = openResource(name);
+		OutputStream out = new FileOutputStream(file);
+
+		try
+		{
+			byte[] buffer = new byte[8192];
+			int n;
+
+			while ((n = in.read(buffer)) > 0)
+			{
+				out.write(buffer, 0, n);
+			}
+		}
+		finally
+		{
+			in.close();
+			out.close();
+		}
+
+		return file;
+	}
+
+	/**
+	 * Loads the block colours of the repository, with the vanilla block and biome ID maps.
+	 */
+	public static BlockColours loadBlockColours() throws IOException
+	{
+		File blockColoursFile = copyResourceToTempFile(RESOURCE_BLOCK_COLOURS);
+		File blockIdMapFile = copyResourceToTempFile(RESOURCE_BLOCK_ID_MAP);
+		File biomeIdMapFile = copyResourceToTempFile(RESOURCE_BIOME_ID_MAP);
+
+		try
+		{
+			// there is no level.dat, so the ID maps only come from the files
+			File worldDir = new File("does-not-exist");
+			BlockColours blockColours = new BlockColours(IdMaps.getIdMap(MapType.BIOMES, worldDir, biomeIdMapFile),
+					IdMaps.getIdMap(MapType.BLOCKS, worldDir, blockIdMapFile));
+			blockColours.loadFromFile(blockColoursFile);
+			return blockColours;
+		}
+		finally
+		{
+			blockColoursFile.delete();
+			blockIdMapFile.delete();
+			biomeIdMapFile.delete();
+		}
+	}
+
+	public static List<MwChunk> readChunks(RegionFile regionFile, List<Chunk> chunks)
+	{
+		List<MwChunk> mwChunks = new ArrayList<MwChunk>();
+
+		for (Chunk chunk : chunks)
+		{
+			mwChunks.add(MwChunk.read(chunk.x, chunk.z, chunk.dimension, regionFile));
+		}
+
+		return mwChunks;
+	}
+
+	/**
+	 * Renders a full region image by repeating the sample chunks over all the 32x32 chunk positions.
+	 */
+	public static int[] renderRegionPixels(BlockColours blockColours, List<MwChunk> chunks)
+	{
+		int[] pixels = new int[Region.SIZE * Region.SIZE];
+
+		for (int i = 0; i < 1024; i++)
+		{
+			int offset = (((i >> 5) << 4) << Region.SHIFT) + ((i & 31) << 4);
+			ChunkToPixels.getMapPixels(blockColours, chunks.get(i % chunks.size()), pixels, offset, Region.SIZE);
+		}
+
+		return pixels;
+	}
+}
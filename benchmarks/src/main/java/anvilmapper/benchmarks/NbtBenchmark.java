@@ -0,0 +1,88 @@
+package anvilmapper.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import mapwriter.region.ChunkInflater;
+import mapwriter.region.Nbt;
+
+/**
+ * Nbt.readNextElement on the sample chunk payloads, on the already inflated NBT and including
+ * the inflating, with the stream layers MwChunk.read used to have and with the ChunkInflater
+ * it uses now. Times are per chunk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NbtBenchmark
+{
+	private static final int CHUNKS = 22;
+
+	private byte[][] compressed;
+	private byte[][] inflated;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		List<Fixtures.Chunk> chunks = Fixtures.loadChunks();
+		this.compressed = new byte[chunks.size()][];
+		this.inflated = new byte[chunks.size()][];
+
+		for (int i = 0; i < chunks.size(); i++)
+		{
+			this.compressed[i] = chunks.get(i).compressed;
+			this.inflated[i] = chunks.get(i).inflate();
+		}
+
+		if (chunks.size() != CHUNKS)
+		{
+			throw new IllegalStateException("expected " + CHUNKS + " sample chunks, got " + chunks.size());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public void readNextElement(Blackhole blackhole) throws IOException
+	{
+		for (byte[] data : this.inflated)
+		{
+			blackhole.consume(Nbt.readNextElement(new DataInputStream(new ByteArrayInputStream(data))));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public void inflateAndReadNextElement(Blackhole blackhole) throws IOException
+	{
+		for (byte[] data : this.compressed)
+		{
+			DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+			blackhole.consume(Nbt.readNextElement(in));
+			in.close();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public void chunkInflaterAndReadNextElement(Blackhole blackhole) throws IOException
+	{
+		ChunkInflater inflater = ChunkInflater.get();
+
+		for (byte[] data : this.compressed)
+		{
+			blackhole.consume(Nbt.readNextElement(inflater.inflate(data, 0, data.length)));
+		}
+	}
+}
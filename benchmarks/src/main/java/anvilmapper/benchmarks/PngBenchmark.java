@@ -0,0 +1,80 @@
+package anvilmapper.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import mapwriter.region.MwChunk;
+import mapwriter.region.PngCodec;
+import mapwriter.region.Region;
+import mapwriter.region.RegionFile;
+
+/**
+ * Encoding and decoding a 512x512 tile (a region image rendered from the sample chunks)
+ * with the PNG settings that AnvilMapper offers. Times are per tile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PngBenchmark
+{
+	@Param({"none", "adaptive"})
+	public String filter;
+
+	@Param({"1", "4", "6"})
+	public int level;
+
+	@Param({"rgb", "indexed"})
+	public String colours;
+
+	private File dir;
+	private File file;
+	private PngCodec.Settings settings;
+	private int[] pixels;
+	private int[] decodedPixels;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		List<Fixtures.Chunk> chunks = Fixtures.loadChunks();
+		this.dir = Fixtures.createTempDir();
+		RegionFile regionFile = new RegionFile(Fixtures.writeRegionFile(this.dir, chunks));
+		regionFile.open();
+		List<MwChunk> mwChunks = Fixtures.readChunks(regionFile, chunks);
+		regionFile.close();
+
+		this.pixels = Fixtures.renderRegionPixels(Fixtures.loadBlockColours(), mwChunks);
+		this.decodedPixels = new int[Region.SIZE * Region.SIZE];
+		this.settings = new PngCodec.Settings(PngCodec.Filter.fromName(this.filter), this.level, this.colours.equals("indexed"));
+		this.file = new File(this.dir, "tile.png");
+		PngCodec.write(this.pixels, Region.SIZE, Region.SIZE, this.file, this.settings);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		Fixtures.deleteRecursively(this.dir);
+	}
+
+	@Benchmark
+	public long encode() throws IOException
+	{
+		PngCodec.write(this.pixels, Region.SIZE, Region.SIZE, this.file, this.settings);
+		return this.file.length();
+	}
+
+	@Benchmark
+	public boolean decode() throws IOException
+	{
+		return PngCodec.read(this.file, this.decodedPixels, Region.SIZE, Region.SIZE);
+	}
+}
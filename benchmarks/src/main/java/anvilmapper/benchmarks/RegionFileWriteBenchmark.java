@@ -0,0 +1,90 @@
+package anvilmapper.benchmarks;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import mapwriter.region.MwChunk;
+import mapwriter.region.Nbt;
+import mapwriter.region.RegionFile;
+
+/**
+ * Writing a whole region file, with the sample chunks repeated over all the 32x32 chunk positions,
+ * with and without batched writes. The file is written to the temporary directory and not synced,
+ * so this measures the compression and the write calls rather than the disk. Times are per chunk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegionFileWriteBenchmark
+{
+	@Param({"false", "true"})
+	public boolean batchedWrites;
+
+	private File worldDir;
+	private File file;
+	private Nbt[] chunkNbt;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		List<Fixtures.Chunk> chunks = Fixtures.loadChunks();
+		this.worldDir = Fixtures.createTempDir();
+		RegionFile regionFile = new RegionFile(Fixtures.writeRegionFile(this.worldDir, chunks));
+		regionFile.open();
+		List<MwChunk> mwChunks = Fixtures.readChunks(regionFile, chunks);
+		regionFile.close();
+
+		this.chunkNbt = new Nbt[mwChunks.size()];
+
+		for (int i = 0; i < this.chunkNbt.length; i++)
+		{
+			this.chunkNbt[i] = mwChunks.get(i).getNbt();
+		}
+
+		this.file = new File(new File(this.worldDir, "region"), "r.1.1.mca");
+		RegionFile.batchedWrites = this.batchedWrites;
+		RegionFile.syncPolicy = RegionFile.SyncPolicy.NONE;
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		RegionFile.batchedWrites = false;
+		Fixtures.deleteRecursively(this.worldDir);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(1024)
+	public void writeRegionFile() throws IOException
+	{
+		this.file.delete();
+		RegionFile regionFile = new RegionFile(this.file);
+		regionFile.open(true);
+
+		try
+		{
+			for (int i = 0; i < 1024; i++)
+			{
+				DataOutputStream out = regionFile.getChunkDataOutputStream(i & 31, i >> 5);
+				this.chunkNbt[i % this.chunkNbt.length].writeElement(out);
+				out.close();
+			}
+		}
+		finally
+		{
+			regionFile.close();
+		}
+	}
+}
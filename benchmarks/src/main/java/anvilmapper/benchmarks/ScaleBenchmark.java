@@ -0,0 +1,232 @@
+package anvilmapper.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import anvilmapper.WorldGenerator;
+
+/**
+ * End to end: generates worlds of increasing size with the WorldGenerator, renders each of them
+ * with AnvilMapper and prints the throughput, the peak heap and the bytes written for each size.
+ *
+ * This is not a JMH benchmark, a render of a large world is one long operation. Each render
+ * runs in its own JVM, so that the sizes do not share the heap, the JIT state or the static
+ * settings of the mapper, and the peak heap is the one of that render (from its metrics.json).
+ *
+ * usage: java -cp benchmarks.jar anvilmapper.benchmarks.ScaleBenchmark [--regions 10,100,1000]
+ *        [--threads N] [--jvm-args "-Xmx2g ..."] [--dir /path/to/work_directory] [--keep]
+ */
+public class ScaleBenchmark
+{
+	private static final Pattern JSON_NUMBER = Pattern.compile("\"([a-z_]+)\": ([0-9.]+)");
+
+	private static class Result
+	{
+		int regions;
+		double generateSeconds;
+		long worldBytes;
+		double renderSeconds;
+		long regionsRendered;
+		long chunksRendered;
+		long peakHeapBytes;
+		long bytesWritten;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		String regionsSpec = "10,100,1000";
+		int threads = Runtime.getRuntime().availableProcessors();
+		String jvmArgs = "";
+		File dir = null;
+		boolean keep = false;
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("--regions") && i + 1 < args.length)
+			{
+				regionsSpec = args[++i];
+			}
+			else if (args[i].equals("--threads") && i + 1 < args.length)
+			{
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--jvm-args") && i + 1 < args.length)
+			{
+				jvmArgs = args[++i];
+			}
+			else if (args[i].equals("--dir") && i + 1 < args.length)
+			{
+				dir = new File(args[++i]);
+			}
+			else if (args[i].equals("--keep"))
+			{
+				keep = true;
+			}
+			else
+			{
+				System.err.println("unknown argument " + args[i]);
+				return;
+			}
+		}
+
+		if (dir == null)
+		{
+			dir = Fixtures.createTempDir();
+		}
+
+		File blockColoursFile = Fixtures.copyResourceToTempFile(Fixtures.RESOURCE_BLOCK_COLOURS);
+		File blockIdMapFile = Fixtures.copyResourceToTempFile(Fixtures.RESOURCE_BLOCK_ID_MAP);
+		File biomeIdMapFile = Fixtures.copyResourceToTempFile(Fixtures.RESOURCE_BIOME_ID_MAP);
+		List<Result> results = new ArrayList<Result>();
+
+		try
+		{
+			for (String part : regionsSpec.split(","))
+			{
+				Result result = new Result();
+				result.regions = Integer.parseInt(part.trim());
+				File worldDir = new File(dir, "world-" + result.regions);
+				File outDir = new File(dir, "out-" + result.regions);
+				Fixtures.deleteRecursively(worldDir);
+				Fixtures.deleteRecursively(outDir);
+
+				System.out.printf(Locale.ROOT, "generating %d regions%n", result.regions);
+				long startTime = System.nanoTime();
+				WorldGenerator.main(new String[] { "--out", worldDir.getPath(), "--regions", Integer.toString(result.regions),
+						"--threads", Integer.toString(threads) });
+				result.generateSeconds = (System.nanoTime() - startTime) / 1.0e9;
+				result.worldBytes = getTotalLength(worldDir);
+
+				System.out.printf(Locale.ROOT, "rendering %d regions%n", result.regions);
+				List<String> command = new ArrayList<String>();
+				command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+
+				for (String jvmArg : jvmArgs.trim().split("\\s+"))
+				{
+					if (jvmArg.length() > 0)
+					{
+						command.add(jvmArg);
+					}
+				}
+
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add("anvilmapper.AnvilMapper");
+				command.add("--world");
+				command.add(worldDir.getPath());
+				command.add("--out");
+				command.add(outDir.getPath());
+				command.add("--block-colors");
+				command.add(blockColoursFile.getPath());
+				command.add("--block-id-map");
+				command.add(blockIdMapFile.getPath());
+				command.add("--biome-id-map");
+				command.add(biomeIdMapFile.getPath());
+				command.add("--threads");
+				command.add(Integer.toString(threads));
+				command.add("--progress-interval");
+				command.add("0");
+
+				outDir.mkdirs();
+				File logFile = new File(dir, "render-" + result.regions + ".log");
+				Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(logFile).start();
+
+				if (process.waitFor() != 0)
+				{
+					System.err.printf(Locale.ROOT, "the render of %d regions failed, see %s%n", result.regions, logFile);
+					keep = true;
+					break;
+				}
+
+				String json = new String(Files.readAllBytes(new File(outDir, "metrics.json").toPath()), StandardCharsets.UTF_8);
+				Matcher matcher = JSON_NUMBER.matcher(json);
+
+				while (matcher.find())
+				{
+					String name = matcher.group(1);
+					String value = matcher.group(2);
+
+					if (name.equals("duration_seconds"))
+					{
+						result.renderSeconds = Double.parseDouble(value);
+					}
+					else if (name.equals("regions_rendered"))
+					{
+						result.regionsRendered = Long.parseLong(value);
+					}
+					else if (name.equals("chunks_rendered"))
+					{
+						result.chunksRendered = Long.parseLong(value);
+					}
+					else if (name.equals("peak_heap_bytes"))
+					{
+						result.peakHeapBytes = Long.parseLong(value);
+					}
+				}
+
+				result.bytesWritten = getTotalLength(outDir);
+				results.add(result);
+
+				if (keep == false)
+				{
+					Fixtures.deleteRecursively(worldDir);
+					Fixtures.deleteRecursively(outDir);
+					logFile.delete();
+				}
+			}
+		}
+		finally
+		{
+			blockColoursFile.delete();
+			blockIdMapFile.delete();
+			biomeIdMapFile.delete();
+
+			if (keep == false)
+			{
+				Fixtures.deleteRecursively(dir);
+			}
+		}
+
+		System.out.printf(Locale.ROOT, "%n%8s %10s %10s %10s %10s %12s %12s %12s %12s%n", "regions", "world MB", "gen s",
+				"render s", "regions/s", "chunks/s", "peak heap MB", "written MB", "B/region");
+
+		for (Result result : results)
+		{
+			System.out.printf(Locale.ROOT, "%8d %10.1f %10.1f %10.1f %10.2f %12.0f %12.1f %12.1f %12.0f%n", result.regions,
+					result.worldBytes / 1048576.0, result.generateSeconds, result.renderSeconds,
+					result.regionsRendered / result.renderSeconds, result.chunksRendered / result.renderSeconds,
+					result.peakHeapBytes / 1048576.0, result.bytesWritten / 1048576.0,
+					(double) result.bytesWritten / Math.max(1, result.regionsRendered));
+		}
+
+		if (keep)
+		{
+			System.out.printf("the worlds and renders are in %s%n", dir);
+		}
+	}
+
+	private static long getTotalLength(File file)
+	{
+		File[] children = file.listFiles();
+
+		if (children == null)
+		{
+			return file.length();
+		}
+
+		long length = 0;
+
+		for (File child : children)
+		{
+			length += getTotalLength(child);
+		}
+
+		return length;
+	}
+}
@@ -0,0 +1,83 @@
+package anvilmapper.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import mapwriter.region.BlockColours;
+import mapwriter.region.MwChunk;
+import mapwriter.region.Region;
+import mapwriter.region.RegionFile;
+import mapwriter.region.RegionManager;
+
+/**
+ * Downsampling a full region image (rendered from the sample chunks) to the next zoom level.
+ * Times are per region.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ZoomBenchmark
+{
+	private File worldDir;
+	private RegionManager regionManager;
+	private Region region;
+	private int[] pixels;
+	private int[] dstPixels;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		List<Fixtures.Chunk> chunks = Fixtures.loadChunks();
+		this.worldDir = Fixtures.createTempDir();
+		RegionFile regionFile = new RegionFile(Fixtures.writeRegionFile(this.worldDir, chunks));
+		regionFile.open();
+		List<MwChunk> mwChunks = Fixtures.readChunks(regionFile, chunks);
+		regionFile.close();
+
+		BlockColours blockColours = Fixtures.loadBlockColours();
+		this.pixels = Fixtures.renderRegionPixels(blockColours, mwChunks);
+		this.dstPixels = new int[Region.SIZE * Region.SIZE];
+
+		// the zoom level images are never saved, as the benchmark does not close the regions
+		this.regionManager = new RegionManager(this.worldDir, new File(this.worldDir, "images"), blockColours);
+		this.region = this.regionManager.getRegion(0, 0, 0, 0);
+		System.arraycopy(this.pixels, 0, this.region.allocatePixels(), 0, this.pixels.length);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		Fixtures.deleteRecursively(this.worldDir);
+	}
+
+	@Benchmark
+	public int[] getAverageOfPixelQuad()
+	{
+		int half = Region.SIZE >> 1;
+
+		for (int z = 0; z < half; z++)
+		{
+			for (int x = 0; x < half; x++)
+			{
+				this.dstPixels[(z * half) + x] = Region.getAverageOfPixelQuad(this.pixels, ((z * 2) << Region.SHIFT) + (x * 2), Region.SIZE);
+			}
+		}
+
+		return this.dstPixels;
+	}
+
+	@Benchmark
+	public boolean updateNextZoomLevel()
+	{
+		return this.region.updateNextZoomLevel(this.region.x, this.region.z, Region.SIZE, Region.SIZE);
+	}
+}
@@ -5,4 +5,4 @@ then
     mkdir -p bin
 fi
 
-javac -sourcepath src:. -d bin src/anvilmapper/AnvilMapper.java
+javac -sourcepath src:. -d bin src/anvilmapper/AnvilMapper.java src/anvilmapper/WorldGenerator.java
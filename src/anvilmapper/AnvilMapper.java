@@ -1,20 +1,37 @@
 package anvilmapper;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
+import anvilmapper.util.ChunkTimestampManifest;
 import anvilmapper.util.FileUtils;
 import anvilmapper.util.IdMaps;
 import anvilmapper.util.IdMaps.MapType;
 import mapwriter.region.BlockColours;
+import mapwriter.region.PngCodec;
+import mapwriter.region.PyramidBuilder;
 import mapwriter.region.Region;
+import mapwriter.region.RegionFile;
 import mapwriter.region.RegionManager;
+import mapwriter.region.RenderMetrics;
+import mapwriter.region.TileHashManifest;
 
 /* TODO:
  *  - Make it possible to load BlockColours from a file (make BlockColours Serializable?)
@@ -27,29 +44,188 @@ public class AnvilMapper
 	private static final String DEFAULT_FILE_BLOCK_ID_MAP = "block_ids.txt";
 	private static final String DEFAULT_FILE_BIOME_ID_MAP = "biome_ids.txt";
 	private static final String DEFAULT_DIR_WORLD = "world";
+	private static final String FILE_CHUNK_TIMESTAMPS = "chunk_timestamps.dat";
+	private static final String FILE_TILE_HASHES = "tile_hashes.dat";
+	private static final String FILE_CHANGED_TILES = "changed_tiles.txt";
+	private static final String FILE_EMPTY_TILE = "empty.png";
+	private static final String FILE_METRICS_JSON = "metrics.json";
+	private static final String FILE_METRICS_PROMETHEUS = "metrics.prom";
+	private static final int MAX_ZOOM_IN_LEVELS = 3;
+	private static final int DEFAULT_PIPELINE_QUEUE_SIZE = 2;
 	public static final Logger LOGGER = Logger.getLogger("anvilmapper");
 	private final File worldDir;
 	private final File imageDir;
 	private final BlockColours blockColours;
 	private final RegionManager regionManager;
 	private final boolean verbose;
+	private final int threads;
+	private final ChunkTimestampManifest timestampManifest;
+	private final TileHashManifest tileHashManifest;
+	private final int zoomInLevels;
+	private final int tileSize;
+	private final ExecutorService tileEncoder;
+	private final ThreadLocal<int[]> tileBuffers;
+	private final int progressInterval;
+	private int[] pipelineThreads = null;
+	private int pipelineQueueSize = DEFAULT_PIPELINE_QUEUE_SIZE;
 
 	static
 	{
 		RegionManager.logger = LOGGER;
 	}
 
-	public AnvilMapper(File worldDir, File imageDir, File blockColoursFile, Map<String, Integer> biomeIdMap, Map<String, Integer> blockIdMap, boolean verbose)
+	public AnvilMapper(File worldDir, File imageDir, File blockColoursFile, Map<String, Integer> biomeIdMap, Map<String, Integer> blockIdMap, boolean verbose, int threads, boolean incremental,
+			int zoomInLevels, int tileSize, int encodeThreads, int progressInterval)
 	{
 		this.worldDir = worldDir;
 		this.imageDir = imageDir;
 		this.verbose = verbose;
+		this.threads = Math.max(1, threads);
+		this.zoomInLevels = Math.min(Math.max(0, zoomInLevels), MAX_ZOOM_IN_LEVELS);
+		this.tileSize = tileSize;
+		this.progressInterval = progressInterval;
+		this.tileEncoder = Executors.newFixedThreadPool(Math.max(1, encodeThreads), daemonThreadFactory("tile-encoder"));
+		this.tileBuffers = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue()
+			{
+				return new int[AnvilMapper.this.tileSize * AnvilMapper.this.tileSize];
+			}
+		};
 		this.blockColours = new BlockColours(biomeIdMap, blockIdMap);
 		this.blockColours.loadFromFile(blockColoursFile);
 		this.regionManager = new RegionManager(this.worldDir, this.imageDir, this.blockColours);
+
+		if (incremental)
+		{
+			// the manifest is stored next to the images directory
+			File manifestFile = new File(this.imageDir.getAbsoluteFile().getParentFile(), FILE_CHUNK_TIMESTAMPS);
+			this.timestampManifest = new ChunkTimestampManifest(manifestFile);
+			this.timestampManifest.readFromFile();
+		}
+		else
+		{
+			this.timestampManifest = null;
+		}
+
+		// images with the same pixels as in the previous run are not written again
+		File outputDir = this.imageDir.getAbsoluteFile().getParentFile();
+		this.tileHashManifest = new TileHashManifest(new File(outputDir, FILE_TILE_HASHES), outputDir);
+		this.tileHashManifest.readFromFile();
+		PngCodec.tileHashManifest = this.tileHashManifest;
+	}
+
+	/**
+	 * Renders the regions in the pipelined mode (see RenderPipeline) instead of with the
+	 * region workers. threads holds the worker thread counts of the fetch, decode, render
+	 * and encode stages, and queueSize the number of regions each queue between them holds.
+	 * The incremental mode always uses the region workers.
+	 */
+	public void setPipeline(int[] threads, int queueSize)
+	{
+		if (threads != null && this.timestampManifest != null)
+		{
+			RegionManager.logWarning("The pipelined mode does not support --incremental, using %d region worker threads", this.threads);
+			threads = null;
+		}
+
+		this.pipelineThreads = threads;
+		this.pipelineQueueSize = Math.max(1, queueSize);
+	}
+
+	private void processRegion(RegionFileEntry entry, int dimension, PyramidBuilder pyramidBuilder)
+	{
+		Region region = null;
+		boolean rendered = false;
+
+		try
+		{
+			region = this.regionManager.getRegion(entry.rX << Region.SHIFT, entry.rZ << Region.SHIFT, 0, dimension);
+			// keep the region loaded while it is being rendered, even if the
+			// other render threads push the region cache over its budget
+			region.pin();
+
+			if (this.verbose)
+			{
+				System.out.printf("DIM%d: Loaded file %s as region %s\n", dimension, entry.file, region.toStringNoDim());
+			}
+
+			if (this.timestampManifest != null)
+			{
+				this.processRegionIncremental(region);
+			}
+			else
+			{
+				region.reload();
+				region.updateZoomLevels();
+				region.saveToImage();
+				this.splitRegionImage(region, null);
+			}
+
+			rendered = true;
+		}
+		catch (RuntimeException e)
+		{
+			RegionManager.logError("Failed to render region file %s: %s", entry.file, e);
+		}
+		finally
+		{
+			// also unpin a region that failed, so that it does not stay in the
+			// cache and keep its zoom level images loaded for the rest of the run
+			if (region != null)
+			{
+				region.unpin();
+				this.regionManager.unloadRegion(region);
+			}
+
+			pyramidBuilder.regionDone(entry.rX, entry.rZ);
+			if (rendered)
+			{
+				RenderMetrics.regionsDone.increment();
+			}
+			else
+			{
+				RenderMetrics.regionsFailed.increment();
+			}
+		}
 	}
 
-	public void processDimension(File dimDir, int dimension)
+	private void processRegionIncremental(Region region)
+	{
+		int[] timestamps = region.getChunkTimestamps();
+		int[] renderedTimestamps = this.timestampManifest.getTimestamps(region.key);
+
+		if (timestamps != null && Arrays.equals(timestamps, renderedTimestamps))
+		{
+			if (this.verbose)
+			{
+				System.out.printf("DIM%d: Region %s is unchanged\n", region.dimension, region.toStringNoDim());
+			}
+
+			return;
+		}
+
+		boolean[] changedChunks = region.reloadChangedChunks(renderedTimestamps, timestamps);
+
+		if (changedChunks != null)
+		{
+			region.updateZoomLevels(changedChunks);
+		}
+		else
+		{
+			region.updateZoomLevels();
+		}
+
+		region.saveToImage();
+		this.splitRegionImage(region, changedChunks);
+
+		if (timestamps != null)
+		{
+			this.timestampManifest.setTimestamps(region.key, timestamps);
+		}
+	}
+
+	public void processDimension(File dimDir, final int dimension)
 	{
 		File regionDir = new File(dimDir, "region");
 
@@ -59,6 +235,8 @@ public class AnvilMapper
 
 			if (regionFilesList != null)
 			{
+				List<RegionFileEntry> entries = new ArrayList<RegionFileEntry>();
+
 				for (File regionFileName : regionFilesList)
 				{
 					if (regionFileName.isFile())
@@ -72,19 +250,7 @@ public class AnvilMapper
 							{
 								int rX = Integer.parseInt(baseNameSplit[1]);
 								int rZ = Integer.parseInt(baseNameSplit[2]);
-
-								Region region = this.regionManager.getRegion(rX << Region.SHIFT, rZ << Region.SHIFT, 0, dimension);
-
-								if (this.verbose)
-								{
-									System.out.printf("DIM%d: Loaded file %s as region %s\n", dimension, regionFileName, region.toStringNoDim());
-								}
-
-								region.reload();
-								region.updateZoomLevels();
-								region.saveToImage();
-								this.splitRegionImage(region, 1);
-								this.regionManager.unloadRegion(region);
+								entries.add(new RegionFileEntry(regionFileName, rX, rZ));
 							}
 							catch (NumberFormatException e)
 							{
@@ -98,6 +264,27 @@ public class AnvilMapper
 					}
 				}
 
+				// Render the regions in Morton order, so that the regions below each zoom level
+				// image are rendered one after the other. The pyramid builder then saves and
+				// unloads each zoom level image once, as soon as all the regions below it are done.
+				Collections.sort(entries);
+				final PyramidBuilder pyramidBuilder = new PyramidBuilder(this.regionManager, dimension);
+
+				for (RegionFileEntry entry : entries)
+				{
+					pyramidBuilder.addRegion(entry.rX, entry.rZ);
+				}
+
+				if (this.pipelineThreads != null)
+				{
+					new RenderPipeline(this, this.regionManager, pyramidBuilder, dimension, this.verbose,
+							this.pipelineThreads, this.pipelineQueueSize).run(entries);
+				}
+				else
+				{
+					this.processRegions(entries, dimension, pyramidBuilder);
+				}
+
 				RegionManager.logInfo("Closing region manager");
 				this.regionManager.close();
 
@@ -113,6 +300,71 @@ public class AnvilMapper
 		}
 	}
 
+	private void processRegions(List<RegionFileEntry> entries, final int dimension, final PyramidBuilder pyramidBuilder)
+	{
+		// With more than one thread, the regions are rendered by a worker pool.
+		// Every region only writes to its own part of the zoom level images,
+		// so the output does not depend on the order the regions finish in.
+		ExecutorService executor = this.threads > 1 ? Executors.newFixedThreadPool(this.threads) : null;
+
+		for (final RegionFileEntry entry : entries)
+		{
+			if (executor != null)
+			{
+				executor.execute(new Runnable() {
+					@Override
+					public void run()
+					{
+						AnvilMapper.this.processRegion(entry, dimension, pyramidBuilder);
+					}
+				});
+			}
+			else
+			{
+				this.processRegion(entry, dimension, pyramidBuilder);
+			}
+		}
+
+		if (executor != null)
+		{
+			executor.shutdown();
+
+			try
+			{
+				while (executor.awaitTermination(1, TimeUnit.MINUTES) == false) { }
+			}
+			catch (InterruptedException e)
+			{
+				RegionManager.logError("Interrupted while waiting for the region render threads");
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// the tile encoder and the progress logger outlive a single region, so their threads are
+	// daemon threads to let the JVM exit when processWorld throws before shutting them down
+	private static ThreadFactory daemonThreadFactory(final String name)
+	{
+		final AtomicInteger threadNumber = new AtomicInteger();
+
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, name + "-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static int countRegionFiles(File dimDir)
+	{
+		File[] regionFilesList = new File(dimDir, "region").listFiles(FileUtils.ANVIL_REGION_FILE_FILTER);
+		return regionFilesList != null ? regionFilesList.length : 0;
+	}
+
 	public void processWorld()
 	{
 		File[] dimDirList = this.worldDir.listFiles(new FilenameFilter() {
@@ -123,6 +375,29 @@ public class AnvilMapper
 			}
 		});
 
+		// count the region files of all the dimensions up front for the progress ETA
+		RenderMetrics.reset();
+		RenderMetrics.regionsTotal.add(countRegionFiles(this.worldDir));
+
+		for (File dimDir : dimDirList)
+		{
+			RenderMetrics.regionsTotal.add(countRegionFiles(dimDir));
+		}
+
+		ScheduledExecutorService progressLogger = null;
+
+		if (this.progressInterval > 0)
+		{
+			progressLogger = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("progress-logger"));
+			progressLogger.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run()
+				{
+					RegionManager.logInfo(RenderMetrics.getProgressLine());
+				}
+			}, this.progressInterval, this.progressInterval, TimeUnit.SECONDS);
+		}
+
 		for (File dimDir : dimDirList)
 		{
 			try
@@ -137,9 +412,45 @@ public class AnvilMapper
 		}
 
 		this.processDimension(this.worldDir, 0);
+
+		if (progressLogger != null)
+		{
+			progressLogger.shutdownNow();
+		}
+
+		if (this.timestampManifest != null)
+		{
+			this.timestampManifest.writeToFile();
+		}
+
+		// the viewer shows this tile in place of the empty tiles that are not written
+		try
+		{
+			PngCodec.writeUniform(0, Region.SIZE, Region.SIZE, new File(this.imageDir, FILE_EMPTY_TILE));
+		}
+		catch (IOException e)
+		{
+			RegionManager.logError("could not write the empty tile to %s", new File(this.imageDir, FILE_EMPTY_TILE));
+		}
+
+		this.tileHashManifest.writeToFile();
+		File changedTilesFile = new File(this.imageDir.getAbsoluteFile().getParentFile(), FILE_CHANGED_TILES);
+		this.tileHashManifest.writeChangedList(changedTilesFile);
+		RegionManager.logInfo("%d images changed, listed in %s", this.tileHashManifest.getChangedCount(), changedTilesFile);
+
+		RegionManager.logInfo("Image output per zoom level:");
+		PngCodec.logStats();
+		this.regionManager.logCacheStats();
+		this.tileEncoder.shutdown();
+
+		RegionManager.logInfo(RenderMetrics.getProgressLine());
+		RenderMetrics.logStages();
+		File outputDir = this.imageDir.getAbsoluteFile().getParentFile();
+		RenderMetrics.writeJson(new File(outputDir, FILE_METRICS_JSON));
+		RenderMetrics.writePrometheus(new File(outputDir, FILE_METRICS_PROMETHEUS));
 	}
 
-	public static void writeImage(BufferedImage img, File imageFile)
+	public static void writeImage(int[] pixels, int size, File imageFile, int zoomLevel)
 	{
 		// write the given image to the image file
 		File dir = imageFile.getParentFile();
@@ -151,7 +462,7 @@ public class AnvilMapper
 
 		try
 		{
-			ImageIO.write(img, "png", imageFile);
+			PngCodec.write(pixels, size, size, imageFile, zoomLevel);
 		}
 		catch (IOException e)
 		{
@@ -159,30 +470,131 @@ public class AnvilMapper
 		}
 	}
 
-	private void splitRegionImage(Region region, int z) {
-		int splitSize = Region.SIZE >> z;
-		int[] pixels = region.getPixels();
+	/**
+	 * Writes the zoomed in (z-1 to z-zoomInLevels) tiles of a region, by repeating each
+	 * region pixel 2^N times in both directions for zoom level -N. The tiles are encoded
+	 * in parallel by the tile encoder threads. If changedChunks is not null, only the
+	 * tiles that contain changed chunks are written.
+	 */
+	void splitRegionImage(final Region region, boolean[] changedChunks)
+	{
+		long startTime = RenderMetrics.start();
+
+		try
+		{
+			this.writeZoomedInTiles(region, changedChunks);
+		}
+		finally
+		{
+			RenderMetrics.stop(RenderMetrics.Stage.TILE_SPLIT, startTime);
+		}
+	}
+
+	private void writeZoomedInTiles(final Region region, boolean[] changedChunks)
+	{
+		final int[] pixels = region.getPixels();
+
+		if (pixels == null)
+		{
+			return;
+		}
+
+		List<Future<?>> tiles = new ArrayList<Future<?>>();
 
-		if (pixels != null)
+		for (int level = 1; level <= this.zoomInLevels; level++)
 		{
-			BufferedImage regionImage = new BufferedImage(Region.SIZE, Region.SIZE, BufferedImage.TYPE_INT_RGB);
-			regionImage.setRGB(0, 0, Region.SIZE, Region.SIZE, pixels, 0, Region.SIZE);
+			// the number of blocks (region pixels) along each side of a tile
+			final int tileBlocks = this.tileSize >> level;
+			final int zoomLevel = -level;
+
+			for (int srcZ = 0; srcZ < Region.SIZE; srcZ += tileBlocks)
+			{
+				for (int srcX = 0; srcX < Region.SIZE; srcX += tileBlocks)
+				{
+					if (changedChunks != null && containsChangedChunk(changedChunks, srcX, srcZ, tileBlocks) == false)
+					{
+						continue;
+					}
+
+					final int x = srcX;
+					final int z = srcZ;
+
+					tiles.add(this.tileEncoder.submit(new Runnable() {
+						@Override
+						public void run()
+						{
+							AnvilMapper.this.writeZoomedInTile(region, pixels, x, z, zoomLevel);
+						}
+					}));
+				}
+			}
+		}
 
-			BufferedImage dstImage = new BufferedImage(Region.SIZE, Region.SIZE, BufferedImage.TYPE_INT_RGB);
-			Graphics2D g = dstImage.createGraphics();
+		for (Future<?> tile : tiles)
+		{
+			try
+			{
+				tile.get();
+			}
+			catch (ExecutionException e)
+			{
+				RegionManager.logError("Failed to write a tile of region %s: %s", region, e.getCause());
+			}
+			catch (InterruptedException e)
+			{
+				RegionManager.logError("Interrupted while writing the tiles of region %s", region);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void writeZoomedInTile(Region region, int[] pixels, int srcX, int srcZ, int zoomLevel)
+	{
+		int shift = -zoomLevel;
+		int tileSize = this.tileSize;
+		int[] tile = this.tileBuffers.get();
+
+		for (int z = 0; z < tileSize; z++)
+		{
+			int dst = z * tileSize;
+
+			if ((z & ((1 << shift) - 1)) != 0)
+			{
+				// the same as the row above
+				System.arraycopy(tile, dst - tileSize, tile, dst, tileSize);
+				continue;
+			}
+
+			int src = ((srcZ + (z >> shift)) << Region.SHIFT) + srcX;
+
+			for (int x = 0; x < tileSize; x++)
+			{
+				tile[dst + x] = pixels[src + (x >> shift)];
+			}
+		}
+
+		// the tile file names are the tile coordinates, in tiles of tileSize pixels
+		File dimDir = region.dimension != 0 ? new File(this.imageDir, "DIM" + region.dimension) : this.imageDir;
+		int tileBlocks = tileSize >> shift;
+		String fileName = String.format("%d.%d.png", Math.floorDiv(region.x + srcX, tileBlocks), Math.floorDiv(region.z + srcZ, tileBlocks));
+		writeImage(tile, tileSize, new File(new File(dimDir, "z" + zoomLevel), fileName), zoomLevel);
+	}
 
-			for (int srcZ = 0; srcZ < Region.SIZE; srcZ += splitSize)
+	private static boolean containsChangedChunk(boolean[] changedChunks, int x, int z, int size)
+	{
+		for (int cz = z >> 4; cz < (z + size) >> 4; cz++)
+		{
+			for (int cx = x >> 4; cx < (x + size) >> 4; cx++)
 			{
-				for (int srcX = 0; srcX < Region.SIZE; srcX += splitSize)
+				if (changedChunks[(cz << 5) | cx])
 				{
-					g.setPaint(Color.BLACK);
-					g.fillRect(0, 0, Region.SIZE, Region.SIZE);
-					g.drawImage(regionImage, 0, 0, Region.SIZE, Region.SIZE, srcX, srcZ, srcX + splitSize, srcZ + splitSize, null);
-					writeImage(dstImage, Region.getImageFile(this.imageDir, region.x + srcX, region.z + srcZ, -z, region.dimension));
+					return true;
 				}
 			}
-			g.dispose();
 		}
+
+		return false;
 	}
 
 	public static void main(String [] args)
@@ -195,11 +607,32 @@ public class AnvilMapper
 							" [--block-colors /path/to/block_colors_file]" +
 							" [--block-id-map /path/to/block_id_map]" +
 							" [--biome-id-map /path/to/biome_id_map]" +
+							" [--threads N]" +
+							" [--incremental]" +
+							" [--region-io raf|channel|mmap]" +
+							" [--read-order grid|sector]" +
+							" [--max-zoom N]" +
+							" [--png-filter none|sub|up|average|paeth|adaptive[,zN=filter...]]" +
+							" [--png-level 0-9[,zN=level...]]" +
+							" [--png-colours rgb|indexed[,zN=rgb|indexed...]]" +
+							" [--write-empty-tiles]" +
+							" [--zoom-in-levels 0-3]" +
+							" [--tile-size 256|512]" +
+							" [--encode-threads N]" +
+							" [--cache-mb N]" +
+							" [--off-heap-mb N]" +
+							" [--progress-interval seconds]" +
+							" [--chunk-threads N]" +
+							" [--pipeline fetch,decode,render,encode]" +
+							" [--pipeline-queue N]" +
 							" [--verbose]");
 			RegionManager.logInfo("The default locations are:\n" +
 								"  block-colors = MapWriterBlockColours.txt\n" +
 								"  block-id-map = block_ids.txt\n" +
 								"  biome_id_map = biome_ids.txt");
+			RegionManager.logInfo("With --region-io mmap the region files stay mapped until the mappings are\n" +
+								"  garbage collected, and on Windows a mapped file can not be deleted or replaced.\n" +
+								"  Use it for runs that only read the world, not while it is being written.");
 			RegionManager.logInfo("The block and biome ID map files are needed if the Block Colours\n" +
 								"  file uses string names (as it does in the recent version of MapWriter),\n" +
 								"  and if there is no block ID and biome ID map in the level.dat file\n" +
@@ -216,6 +649,17 @@ public class AnvilMapper
 		String biomeIdMapLocation = DEFAULT_FILE_BIOME_ID_MAP;
 		String blockIdMapLocation = DEFAULT_FILE_BLOCK_ID_MAP;
 		boolean verbose = false;
+		int threads = 1;
+		boolean incremental = false;
+		String pngFilterSpec = null;
+		String pngLevelSpec = null;
+		String pngColoursSpec = null;
+		int zoomInLevels = 1;
+		int tileSize = Region.SIZE;
+		int encodeThreads = Runtime.getRuntime().availableProcessors();
+		int progressInterval = 30;
+		int[] pipelineThreads = null;
+		int pipelineQueueSize = DEFAULT_PIPELINE_QUEUE_SIZE;
 
 		for (int i = 0; i < args.length; i++)
 		{
@@ -243,13 +687,174 @@ public class AnvilMapper
 				{
 					blockColorsLocation = argValue;
 				}
+				else if ((argValue = getArgumentValue(args, "threads", i)) != null)
+				{
+					try
+					{
+						threads = Integer.parseInt(argValue);
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid thread count '%s', using one thread", argValue);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "region-io", i)) != null)
+				{
+					RegionFile.ReadMode readMode = RegionFile.ReadMode.fromName(argValue);
+
+					if (readMode != null)
+					{
+						RegionFile.readMode = readMode;
+					}
+					else
+					{
+						RegionManager.logWarning("Invalid region file read mode '%s', using '%s'", argValue, RegionFile.readMode.name);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "read-order", i)) != null)
+				{
+					if (argValue.equals("grid") || argValue.equals("sector"))
+					{
+						RegionFile.sectorOrderedReads = argValue.equals("sector");
+					}
+					else
+					{
+						RegionManager.logWarning("Invalid chunk read order '%s', using '%s'", argValue, RegionFile.sectorOrderedReads ? "sector" : "grid");
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "max-zoom", i)) != null)
+				{
+					try
+					{
+						// the region coordinates of the zoom levels are stored in 16 bits
+						Region.maxZoom = Math.min(Math.max(0, Integer.parseInt(argValue)), 15);
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid maximum zoom level '%s', using %d", argValue, Region.maxZoom);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "png-filter", i)) != null)
+				{
+					pngFilterSpec = argValue;
+				}
+				else if ((argValue = getArgumentValue(args, "png-level", i)) != null)
+				{
+					pngLevelSpec = argValue;
+				}
+				else if ((argValue = getArgumentValue(args, "zoom-in-levels", i)) != null)
+				{
+					try
+					{
+						zoomInLevels = Integer.parseInt(argValue);
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid zoom in level count '%s', using %d", argValue, zoomInLevels);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "tile-size", i)) != null)
+				{
+					if (argValue.equals("256") || argValue.equals("512"))
+					{
+						tileSize = Integer.parseInt(argValue);
+					}
+					else
+					{
+						RegionManager.logWarning("Invalid tile size '%s', using %d", argValue, tileSize);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "encode-threads", i)) != null)
+				{
+					try
+					{
+						encodeThreads = Integer.parseInt(argValue);
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid encode thread count '%s', using %d", argValue, encodeThreads);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "cache-mb", i)) != null)
+				{
+					try
+					{
+						RegionManager.maxLoadedBytes = Math.max(1, Long.parseLong(argValue)) << 20;
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid region cache size '%s', using %d MB", argValue, RegionManager.maxLoadedBytes >> 20);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "off-heap-mb", i)) != null)
+				{
+					try
+					{
+						RegionManager.maxOffHeapBytes = Math.max(0, Long.parseLong(argValue)) << 20;
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid off heap store size '%s', not using an off heap store", argValue);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "progress-interval", i)) != null)
+				{
+					try
+					{
+						progressInterval = Integer.parseInt(argValue);
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid progress interval '%s', using %d seconds", argValue, progressInterval);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "chunk-threads", i)) != null)
+				{
+					try
+					{
+						RegionManager.chunkRenderThreads = Integer.parseInt(argValue);
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid chunk render thread count '%s', using %d", argValue, RegionManager.chunkRenderThreads);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "pipeline-queue", i)) != null)
+				{
+					try
+					{
+						pipelineQueueSize = Integer.parseInt(argValue);
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid pipeline queue size '%s', using %d", argValue, pipelineQueueSize);
+					}
+				}
+				else if ((argValue = getArgumentValue(args, "pipeline", i)) != null)
+				{
+					pipelineThreads = parsePipelineThreads(argValue);
+				}
+				else if ((argValue = getArgumentValue(args, "png-colours", i)) != null)
+				{
+					pngColoursSpec = argValue;
+				}
 				else if (args[i].equals("--verbose"))
 				{
 					verbose = true;
 				}
+				else if (args[i].equals("--incremental"))
+				{
+					incremental = true;
+				}
+				else if (args[i].equals("--write-empty-tiles"))
+				{
+					PngCodec.skipEmptyImages = false;
+				}
 			}
 		}
 
+		setPngSettings(pngFilterSpec, pngLevelSpec, pngColoursSpec, incremental);
+
 		File worldDir = new File(worldLocation);
 		File imageDir = outputLocation != null ? new File(outputLocation, "images") : new File("images");
 		File blockColorsFile = new File(blockColorsLocation);
@@ -276,11 +881,198 @@ public class AnvilMapper
 		Map<String, Integer> biomeIdMap = IdMaps.getIdMap(MapType.BIOMES, worldDir, biomeIdMapFile);
 		Map<String, Integer> blockIdMap = IdMaps.getIdMap(MapType.BLOCKS, worldDir, blockIdMapFile);
 
-		AnvilMapper anvilMapper = new AnvilMapper(worldDir, imageDir, blockColorsFile, biomeIdMap, blockIdMap, verbose);
+		AnvilMapper anvilMapper = new AnvilMapper(worldDir, imageDir, blockColorsFile, biomeIdMap, blockIdMap, verbose, threads, incremental,
+				zoomInLevels, tileSize, encodeThreads, progressInterval);
+
+		if (pipelineThreads != null)
+		{
+			anvilMapper.setPipeline(pipelineThreads, pipelineQueueSize);
+		}
+
 		anvilMapper.processWorld();
 	}
 
-	private static String getArgumentValue(String[] args, String argName, int argIndex)
+	/**
+	 * Parses the --png-filter, --png-level and --png-colours values. Each value is a comma
+	 * separated list of a default value and/or per zoom level values, e.g. "adaptive,z-1=up,z5=none".
+	 *
+	 * An incremental run renders the changed chunks on top of the zoom level 0 and higher images
+	 * of the previous run, so those are always written as RGB images: quantizing them again on
+	 * every run would make the loss compound, and the output depend on the history of the runs.
+	 * The zoomed in tiles are never read back, so they can still be indexed. Within a run, the
+	 * zoom level 1 and higher images are not read back either: the region cache never saves them
+	 * before all the regions below them have been rendered (see RegionManager.pruneRegions).
+	 */
+	private static void setPngSettings(String filterSpec, String levelSpec, String coloursSpec, boolean incremental)
+	{
+		Map<Integer, String> filters = parsePerZoomSpec(filterSpec);
+		Map<Integer, String> levels = parsePerZoomSpec(levelSpec);
+		Map<Integer, String> colours = parsePerZoomSpec(coloursSpec);
+		PngCodec.Settings defaults = PngCodec.defaultSettings;
+		PngCodec.Filter defaultFilter = parsePngFilter(filters.remove(null), defaults.filter);
+		int defaultLevel = parsePngLevel(levels.remove(null), defaults.level);
+		boolean defaultIndexed = parsePngIndexed(colours.remove(null), defaults.indexed);
+		PngCodec.defaultSettings = new PngCodec.Settings(defaultFilter, defaultLevel, defaultIndexed);
+
+		Set<Integer> zoomLevels = new TreeSet<Integer>(filters.keySet());
+		zoomLevels.addAll(levels.keySet());
+		zoomLevels.addAll(colours.keySet());
+
+		for (Integer zoomLevel : zoomLevels)
+		{
+			PngCodec.Filter filter = parsePngFilter(filters.get(zoomLevel), defaultFilter);
+			int level = parsePngLevel(levels.get(zoomLevel), defaultLevel);
+			boolean indexed = parsePngIndexed(colours.get(zoomLevel), defaultIndexed);
+			PngCodec.setSettings(zoomLevel, new PngCodec.Settings(filter, level, indexed));
+		}
+
+		if (incremental)
+		{
+			boolean rgbForced = false;
+
+			for (int zoomLevel = 0; zoomLevel <= Region.maxZoom; zoomLevel++)
+			{
+				PngCodec.Settings settings = PngCodec.getSettings(zoomLevel);
+
+				if (settings.indexed)
+				{
+					PngCodec.setSettings(zoomLevel, new PngCodec.Settings(settings.filter, settings.level, false));
+					rgbForced = true;
+				}
+			}
+
+			if (rgbForced)
+			{
+				RegionManager.logWarning("The zoom level 0 and higher images are written as RGB images with --incremental, only the zoomed in tiles are indexed");
+			}
+		}
+	}
+
+	/**
+	 * Parses the --pipeline value, the worker thread counts of the fetch, decode, render and encode
+	 * stages, e.g. "1,4,2,2". Missing counts (or "auto") use the defaults: one fetch thread, a decode
+	 * thread for each processor and a render and an encode thread for every two processors.
+	 */
+	private static int[] parsePipelineThreads(String spec)
+	{
+		int processors = Runtime.getRuntime().availableProcessors();
+		int[] threads = new int[] { 1, processors, Math.max(1, processors / 2), Math.max(1, processors / 2) };
+		String[] parts = spec.split(",");
+
+		for (int i = 0; i < parts.length && i < threads.length; i++)
+		{
+			String part = parts[i].trim();
+
+			if (part.length() == 0 || part.equals("auto"))
+			{
+				continue;
+			}
+
+			try
+			{
+				threads[i] = Math.max(1, Integer.parseInt(part));
+			}
+			catch (NumberFormatException e)
+			{
+				RegionManager.logWarning("Invalid pipeline thread count '%s', using %d", part, threads[i]);
+			}
+		}
+
+		return threads;
+	}
+
+	private static boolean parsePngIndexed(String value, boolean defaultIndexed)
+	{
+		if (value == null)
+		{
+			return defaultIndexed;
+		}
+		else if (value.equals("indexed"))
+		{
+			return true;
+		}
+		else if (value.equals("rgb"))
+		{
+			return false;
+		}
+
+		RegionManager.logWarning("Invalid PNG colour mode '%s', using '%s'", value, defaultIndexed ? "indexed" : "rgb");
+		return defaultIndexed;
+	}
+
+	private static Map<Integer, String> parsePerZoomSpec(String spec)
+	{
+		// the default value uses the key null
+		Map<Integer, String> values = new HashMap<Integer, String>();
+
+		if (spec != null)
+		{
+			for (String part : spec.split(","))
+			{
+				String[] zoomAndValue = part.trim().split("=");
+
+				if (zoomAndValue.length == 1)
+				{
+					values.put(null, zoomAndValue[0]);
+				}
+				else if (zoomAndValue.length == 2 && zoomAndValue[0].startsWith("z"))
+				{
+					try
+					{
+						values.put(Integer.parseInt(zoomAndValue[0].substring(1)), zoomAndValue[1]);
+					}
+					catch (NumberFormatException e)
+					{
+						RegionManager.logWarning("Invalid zoom level in '%s'", part);
+					}
+				}
+				else
+				{
+					RegionManager.logWarning("Invalid per zoom level setting '%s'", part);
+				}
+			}
+		}
+
+		return values;
+	}
+
+	private static PngCodec.Filter parsePngFilter(String name, PngCodec.Filter defaultFilter)
+	{
+		if (name == null)
+		{
+			return defaultFilter;
+		}
+
+		PngCodec.Filter filter = PngCodec.Filter.fromName(name);
+
+		if (filter == null)
+		{
+			RegionManager.logWarning("Invalid PNG filter '%s', using '%s'", name, defaultFilter.name);
+			return defaultFilter;
+		}
+
+		return filter;
+	}
+
+	private static int parsePngLevel(String value, int defaultLevel)
+	{
+		if (value == null)
+		{
+			return defaultLevel;
+		}
+
+		try
+		{
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			RegionManager.logWarning("Invalid PNG compression level '%s', using %d", value, defaultLevel);
+			return defaultLevel;
+		}
+	}
+
+	static String getArgumentValue(String[] args, String argName, int argIndex)
 	{
 		if (args.length > argIndex && args[argIndex].startsWith("--"))
 		{
@@ -298,4 +1090,26 @@ public class AnvilMapper
 
 		return null;
 	}
+
+	static class RegionFileEntry implements Comparable<RegionFileEntry>
+	{
+		public final File file;
+		public final int rX;
+		public final int rZ;
+		public final long mortonCode;
+
+		public RegionFileEntry(File file, int rX, int rZ)
+		{
+			this.file = file;
+			this.rX = rX;
+			this.rZ = rZ;
+			this.mortonCode = PyramidBuilder.getMortonCode(rX, rZ);
+		}
+
+		@Override
+		public int compareTo(RegionFileEntry other)
+		{
+			return this.mortonCode < other.mortonCode ? -1 : (this.mortonCode > other.mortonCode ? 1 : 0);
+		}
+	}
 }
@@ -0,0 +1,411 @@
+package anvilmapper;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import anvilmapper.AnvilMapper.RegionFileEntry;
+import mapwriter.region.MwChunk;
+import mapwriter.region.PyramidBuilder;
+import mapwriter.region.Region;
+import mapwriter.region.RegionFile;
+import mapwriter.region.RegionManager;
+import mapwriter.region.RenderMetrics;
+
+/**
+ * The pipelined render mode (--pipeline). The regions of a dimension pass through four stages,
+ * each with its own worker threads:
+ *
+ *  - fetch:  reads the compressed chunk data of a region file (in sector order with
+ *            RegionFile.sectorOrderedReads)
+ *  - decode: inflates and parses the chunks
+ *  - render: renders the chunks into the region image and updates the zoom level images
+ *  - encode: saves the region image, writes the zoomed in tiles and unloads the region
+ *
+ * So the disk reads, the decoding, the rendering and the PNG encoding of different regions
+ * overlap, instead of each region worker doing them one after the other. The stages are
+ * connected by bounded queues of regions: a stage blocks when the queue after it is full,
+ * which limits the memory to the regions in the queues and in the stages. The queue depths
+ * are in the progress line, and the time the stages spend waiting on each queue (full or
+ * empty) is logged and written to the metrics files at the end of the run, which shows
+ * the bottleneck stage on a given machine.
+ *
+ * The regions enter the pipeline in Morton order and every region only writes to its own part
+ * of the zoom level images, so the output is the same as with the region workers.
+ */
+class RenderPipeline
+{
+	public static final int FETCH = 0;
+	public static final int DECODE = 1;
+	public static final int RENDER = 2;
+	public static final int ENCODE = 3;
+	private static final String[] STAGE_NAMES = new String[] { "fetch", "decode", "render", "encode" };
+
+	private static class RegionWork
+	{
+		public final RegionFileEntry entry;
+		// null if the region file has no chunks, otherwise indexed by (cz << 5) | cx
+		public byte[][] compressedChunks;
+		public MwChunk[] chunks;
+		public Region region;
+
+		public RegionWork(RegionFileEntry entry)
+		{
+			this.entry = entry;
+		}
+	}
+
+	// tells the workers of a stage that the stage before it is done, see workerDone
+	private static final RegionWork END = new RegionWork(null);
+
+	private final AnvilMapper anvilMapper;
+	private final RegionManager regionManager;
+	private final PyramidBuilder pyramidBuilder;
+	private final int dimension;
+	private final boolean verbose;
+	private final Stage[] stages;
+
+	/**
+	 * threads holds the number of worker threads of each stage, indexed by FETCH, DECODE, RENDER
+	 * and ENCODE. queueSize is the capacity (in regions) of each queue between two stages.
+	 */
+	public RenderPipeline(AnvilMapper anvilMapper, RegionManager regionManager, PyramidBuilder pyramidBuilder, int dimension, boolean verbose,
+			int[] threads, int queueSize)
+	{
+		this.anvilMapper = anvilMapper;
+		this.regionManager = regionManager;
+		this.pyramidBuilder = pyramidBuilder;
+		this.dimension = dimension;
+		this.verbose = verbose;
+		this.stages = new Stage[STAGE_NAMES.length];
+
+		for (int i = 0; i < this.stages.length; i++)
+		{
+			// the fetch stage takes the regions from the list of region files instead of a queue
+			this.stages[i] = new Stage(i, Math.max(1, threads[i]), i > FETCH ? Math.max(1, queueSize) : 0);
+		}
+	}
+
+	public void run(List<RegionFileEntry> entries)
+	{
+		final List<RegionFileEntry> regionFiles = entries;
+		final AtomicInteger nextEntry = new AtomicInteger();
+		int threadCount = 0;
+
+		for (Stage stage : this.stages)
+		{
+			threadCount += stage.threads;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+		for (final Stage stage : this.stages)
+		{
+			for (int i = 0; i < stage.threads; i++)
+			{
+				executor.execute(new Runnable() {
+					@Override
+					public void run()
+					{
+						RenderPipeline.this.runWorker(stage, regionFiles, nextEntry);
+					}
+				});
+			}
+		}
+
+		executor.shutdown();
+
+		try
+		{
+			while (executor.awaitTermination(1, TimeUnit.MINUTES) == false) { }
+		}
+		catch (InterruptedException e)
+		{
+			RegionManager.logError("Interrupted while waiting for the render pipeline threads");
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		for (Stage stage : this.stages)
+		{
+			if (stage.stats != null)
+			{
+				stage.stats.setQueue(null, 0);
+			}
+		}
+	}
+
+	private void runWorker(Stage stage, List<RegionFileEntry> entries, AtomicInteger nextEntry)
+	{
+		Stage nextStage = stage.index < ENCODE ? this.stages[stage.index + 1] : null;
+		boolean ended = false;
+
+		try
+		{
+			while (true)
+			{
+				RegionWork work;
+
+				if (stage.queue == null)
+				{
+					int i = nextEntry.getAndIncrement();
+					work = i < entries.size() ? new RegionWork(entries.get(i)) : END;
+				}
+				else
+				{
+					work = stage.take();
+				}
+
+				if (work == END)
+				{
+					ended = true;
+					break;
+				}
+
+				boolean passOn = false;
+
+				try
+				{
+					passOn = this.process(stage.index, work);
+				}
+				catch (RuntimeException e)
+				{
+					RegionManager.logError("Failed to render region file %s: %s", work.entry.file, e);
+					this.finishRegion(work, true);
+				}
+				catch (Error e)
+				{
+					RegionManager.logError("Failed to render region file %s, stopping a %s worker: %s", work.entry.file, STAGE_NAMES[stage.index], e);
+					this.finishRegion(work, true);
+					throw e;
+				}
+
+				if (passOn)
+				{
+					nextStage.put(work);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			// also when the worker dies, so that the pipeline drains instead of hanging
+			this.workerDone(stage, nextStage, ended);
+		}
+	}
+
+	/**
+	 * The END marker is put once on the queue of a stage, and each worker of the stage puts it back
+	 * for the next worker, so the stages do not depend on how many of their workers are still alive.
+	 * The last worker of a stage to finish ends the next stage. If that worker died before the END
+	 * marker, it takes the rest of the regions off the queue of its stage first, so that the stage
+	 * before it does not block on a full queue.
+	 */
+	private void workerDone(Stage stage, Stage nextStage, boolean ended)
+	{
+		try
+		{
+			if (ended && stage.queue != null)
+			{
+				stage.queue.put(END);
+			}
+
+			if (stage.running.decrementAndGet() == 0)
+			{
+				if (ended == false && stage.queue != null)
+				{
+					RegionWork work;
+
+					while ((work = stage.take()) != END)
+					{
+						this.finishRegion(work, true);
+					}
+				}
+
+				if (nextStage != null)
+				{
+					nextStage.put(END);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs a stage on a region. Returns true if the region goes on to the next stage.
+	 */
+	private boolean process(int stage, RegionWork work)
+	{
+		switch (stage)
+		{
+			case FETCH:
+				this.fetch(work);
+				return true;
+
+			case DECODE:
+				this.decode(work);
+				return true;
+
+			case RENDER:
+				this.render(work);
+				return true;
+
+			default:
+				this.encode(work);
+				return false;
+		}
+	}
+
+	private void fetch(RegionWork work)
+	{
+		RegionFile regionFile = new RegionFile(work.entry.file);
+
+		if (regionFile.open())
+		{
+			return;
+		}
+
+		try
+		{
+			if (regionFile.isEmpty())
+			{
+				return;
+			}
+
+			if (RegionFile.sectorOrderedReads)
+			{
+				work.compressedChunks = regionFile.getAllCompressedChunkData();
+			}
+			else
+			{
+				work.compressedChunks = new byte[1024][];
+
+				for (int i = 0; i < 1024; i++)
+				{
+					work.compressedChunks[i] = regionFile.getCompressedChunkData(i & 31, i >> 5);
+				}
+			}
+		}
+		finally
+		{
+			regionFile.close();
+		}
+	}
+
+	private void decode(RegionWork work)
+	{
+		if (work.compressedChunks != null)
+		{
+			work.chunks = new MwChunk[1024];
+
+			for (int i = 0; i < 1024; i++)
+			{
+				if (work.compressedChunks[i] != null)
+				{
+					work.chunks[i] = MwChunk.read(i & 31, i >> 5, this.dimension, work.compressedChunks[i]);
+				}
+			}
+
+			work.compressedChunks = null;
+		}
+	}
+
+	private void render(RegionWork work)
+	{
+		Region region = this.regionManager.getRegion(work.entry.rX << Region.SHIFT, work.entry.rZ << Region.SHIFT, 0, this.dimension);
+		// keep the region loaded until it has been encoded, see AnvilMapper.processRegion
+		region.pin();
+		work.region = region;
+
+		if (this.verbose)
+		{
+			System.out.printf("DIM%d: Loaded file %s as region %s\n", this.dimension, work.entry.file, region.toStringNoDim());
+		}
+
+		region.reload(work.chunks);
+		work.chunks = null;
+		region.updateZoomLevels();
+	}
+
+	private void encode(RegionWork work)
+	{
+		work.region.saveToImage();
+		this.anvilMapper.splitRegionImage(work.region, null);
+		this.finishRegion(work, false);
+	}
+
+	private void finishRegion(RegionWork work, boolean failed)
+	{
+		if (work.region != null)
+		{
+			work.region.unpin();
+			this.regionManager.unloadRegion(work.region);
+			work.region = null;
+		}
+
+		work.compressedChunks = null;
+		work.chunks = null;
+		this.pyramidBuilder.regionDone(work.entry.rX, work.entry.rZ);
+		if (failed)
+		{
+			RenderMetrics.regionsFailed.increment();
+		}
+		else
+		{
+			RenderMetrics.regionsDone.increment();
+		}
+	}
+
+	private static class Stage
+	{
+		public final int index;
+		public final int threads;
+		public final AtomicInteger running;
+		// the queue of the regions for this stage, null for the fetch stage
+		public final BlockingQueue<RegionWork> queue;
+		public final RenderMetrics.QueueStats stats;
+
+		public Stage(int index, int threads, int queueSize)
+		{
+			this.index = index;
+			this.threads = threads;
+			this.running = new AtomicInteger(threads);
+
+			if (queueSize > 0)
+			{
+				this.queue = new ArrayBlockingQueue<RegionWork>(queueSize);
+				this.stats = RenderMetrics.getQueueStats(STAGE_NAMES[index]);
+				this.stats.setQueue(this.queue, queueSize);
+			}
+			else
+			{
+				this.queue = null;
+				this.stats = null;
+			}
+		}
+
+		public void put(RegionWork work) throws InterruptedException
+		{
+			long startTime = System.nanoTime();
+			this.queue.put(work);
+			this.stats.addPut(System.nanoTime() - startTime);
+		}
+
+		public RegionWork take() throws InterruptedException
+		{
+			long startTime = System.nanoTime();
+			RegionWork work = this.queue.take();
+			this.stats.addTake(System.nanoTime() - startTime);
+			return work;
+		}
+	}
+}
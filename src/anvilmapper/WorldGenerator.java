@@ -0,0 +1,507 @@
+package anvilmapper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import mapwriter.region.MwChunk;
+import mapwriter.region.RegionFile;
+import mapwriter.region.RegionManager;
+
+/**
+ * Writes synthetic Anvil worlds of a given size, for testing and benchmarking the mapper
+ * without a real world save.
+ *
+ * The regions are laid out in a square-ish grid around region (0, 0), filled row by row.
+ * The terrain is value noise: bedrock at y = 0, stone, three blocks of dirt and grass on top,
+ * or sand under water up to the sea level. The empty sections above the terrain get scattered
+ * leaves with the given probability, and the given share of the surface blocks are replaced by
+ * modded block IDs, which go to the "Add" arrays of the sections when they are above 255.
+ *
+ * The chunk contents only depend on the seed and the options, so the same command line always
+ * writes the same chunks. Only the chunk timestamps in the region files are the time of writing.
+ * The block IDs are the vanilla ones, so render the worlds with block_ids_vanilla.txt and
+ * biome_ids_vanilla.txt as the ID maps.
+ */
+public class WorldGenerator
+{
+	private static final int BLOCK_STONE = 1;
+	private static final int BLOCK_GRASS = 2;
+	private static final int BLOCK_DIRT = 3;
+	private static final int BLOCK_BEDROCK = 7;
+	private static final int BLOCK_WATER = 9;
+	private static final int BLOCK_SAND = 12;
+	private static final int BLOCK_LEAVES = 18;
+	private static final int MAX_BLOCK_ID = 4095;
+	private static final int SEA_LEVEL = 62;
+	// the lattice spacing of the noise functions, in blocks
+	private static final int TERRAIN_SCALE = 64;
+	private static final int DETAIL_SCALE = 16;
+	private static final int BIOME_SCALE = 256;
+	// salts for the hashes, so that the noise functions and the random choices are independent
+	private static final long SALT_TERRAIN = 1;
+	private static final long SALT_DETAIL = 2;
+	private static final long SALT_BIOME = 3;
+	private static final long SALT_SECTION = 4;
+	private static final long SALT_LEAVES = 5;
+	private static final long SALT_MODDED = 6;
+
+	private final File regionDir;
+	private final long seed;
+	private final int baseHeight;
+	private final int amplitude;
+	private final double sectionDensity;
+	private final int[] biomeIds;
+	private final int[] moddedIds;
+	private final double moddedShare;
+
+	public WorldGenerator(File worldDir, long seed, int baseHeight, int amplitude, double sectionDensity, int[] biomeIds, int[] moddedIds, double moddedShare)
+	{
+		this.regionDir = new File(worldDir, "region");
+		this.seed = seed;
+		this.baseHeight = Math.min(Math.max(1, baseHeight), 254);
+		this.amplitude = Math.max(0, amplitude);
+		this.sectionDensity = Math.min(Math.max(0.0, sectionDensity), 1.0);
+		this.biomeIds = biomeIds.length > 0 ? biomeIds : new int[] { 1 };
+		this.moddedIds = moddedIds;
+		this.moddedShare = moddedIds.length > 0 ? Math.min(Math.max(0.0, moddedShare), 1.0) : 0.0;
+	}
+
+	/**
+	 * Writes the region files of the world, replacing any existing ones.
+	 * Returns the number of regions that failed to write.
+	 */
+	public int generate(int regions, int threads)
+	{
+		int width = (int) Math.ceil(Math.sqrt(regions));
+		final AtomicInteger failed = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < regions; i++)
+		{
+			final int rX = (i % width) - (width / 2);
+			final int rZ = (i / width) - (width / 2);
+
+			futures.add(executor.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (WorldGenerator.this.generateRegion(rX, rZ))
+					{
+						failed.incrementAndGet();
+					}
+				}
+			}));
+		}
+
+		executor.shutdown();
+
+		for (Future<?> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (ExecutionException e)
+			{
+				RegionManager.logError("Exception while generating a region: %s", e.getCause());
+				failed.incrementAndGet();
+			}
+		}
+
+		return failed.get();
+	}
+
+	// returns true on error
+	private boolean generateRegion(int rX, int rZ)
+	{
+		File file = new File(this.regionDir, String.format("r.%d.%d.mca", rX, rZ));
+
+		if (file.exists() && file.delete() == false)
+		{
+			RegionManager.logError("Could not replace the region file '%s'", file);
+			return true;
+		}
+
+		RegionFile regionFile = new RegionFile(file);
+
+		if (regionFile.open(true))
+		{
+			return true;
+		}
+
+		boolean error = false;
+
+		try
+		{
+			for (int z = 0; z < 32 && error == false; z++)
+			{
+				for (int x = 0; x < 32 && error == false; x++)
+				{
+					error = this.generateChunk((rX << 5) + x, (rZ << 5) + z).write(regionFile);
+				}
+			}
+
+			if (error == false)
+			{
+				error = regionFile.flush();
+			}
+		}
+		finally
+		{
+			regionFile.close();
+		}
+
+		return error;
+	}
+
+	public MwChunk generateChunk(int cX, int cZ)
+	{
+		byte[][] msbArray = new byte[16][];
+		byte[][] lsbArray = new byte[16][];
+		byte[][] metaArray = new byte[16][];
+		byte[] biomeArray = new byte[256];
+		int maxTop = 0;
+
+		for (int z = 0; z < 16; z++)
+		{
+			for (int x = 0; x < 16; x++)
+			{
+				int bX = (cX << 4) + x;
+				int bZ = (cZ << 4) + z;
+				int height = this.getHeight(bX, bZ);
+				maxTop = Math.max(maxTop, Math.max(height, SEA_LEVEL));
+
+				setBlock(msbArray, lsbArray, metaArray, x, 0, z, BLOCK_BEDROCK);
+
+				for (int y = 1; y <= height; y++)
+				{
+					int blockId;
+
+					if (y < height - 3)
+					{
+						blockId = BLOCK_STONE;
+					}
+					else if (y < height)
+					{
+						blockId = BLOCK_DIRT;
+					}
+					else if (this.moddedShare > 0.0 && this.random(SALT_MODDED, bX, y, bZ) < this.moddedShare)
+					{
+						blockId = this.getModdedId(bX, bZ);
+					}
+					else
+					{
+						blockId = height >= SEA_LEVEL ? BLOCK_GRASS : BLOCK_SAND;
+					}
+
+					setBlock(msbArray, lsbArray, metaArray, x, y, z, blockId);
+				}
+
+				for (int y = height + 1; y <= SEA_LEVEL; y++)
+				{
+					setBlock(msbArray, lsbArray, metaArray, x, y, z, BLOCK_WATER);
+				}
+
+				biomeArray[(z << 4) | x] = (byte) this.getBiomeId(bX, bZ);
+			}
+		}
+
+		// the sections above the terrain
+		for (int yi = (maxTop >> 4) + 1; yi < 16; yi++)
+		{
+			if (this.random(SALT_SECTION, cX, yi, cZ) < this.sectionDensity)
+			{
+				for (int i = 0; i < 256; i++)
+				{
+					double r = this.random(SALT_LEAVES, (cX << 4) + (i & 15), yi, (cZ << 4) + (i >> 4));
+
+					// one in four columns, at a height from the same random value
+					if (r < 0.25)
+					{
+						setBlock(msbArray, lsbArray, metaArray, i & 15, (yi << 4) + (int) (r * 64.0), i >> 4, BLOCK_LEAVES);
+					}
+				}
+			}
+		}
+
+		return new MwChunk(cX, cZ, 0, msbArray, lsbArray, metaArray, biomeArray);
+	}
+
+	private static void setBlock(byte[][] msbArray, byte[][] lsbArray, byte[][] metaArray, int x, int y, int z, int blockId)
+	{
+		int yi = y >> 4;
+		int offset = ((y & 15) << 8) | (z << 4) | x;
+
+		if (lsbArray[yi] == null)
+		{
+			lsbArray[yi] = new byte[4096];
+			metaArray[yi] = new byte[2048];
+		}
+
+		lsbArray[yi][offset] = (byte) blockId;
+
+		if (blockId > 255)
+		{
+			if (msbArray[yi] == null)
+			{
+				msbArray[yi] = new byte[2048];
+			}
+
+			int shift = (offset & 1) << 2;
+			msbArray[yi][offset >> 1] |= (byte) (((blockId >> 8) & 0xf) << shift);
+		}
+	}
+
+	private int getHeight(int x, int z)
+	{
+		double noise = this.noise(SALT_TERRAIN, x, z, TERRAIN_SCALE) + (0.25 * this.noise(SALT_DETAIL, x, z, DETAIL_SCALE));
+		int height = this.baseHeight + (int) Math.round(noise * 0.8 * this.amplitude);
+		return Math.min(Math.max(1, height), 254);
+	}
+
+	private int getBiomeId(int x, int z)
+	{
+		double noise = (this.noise(SALT_BIOME, x, z, BIOME_SCALE) + 1.0) * 0.5;
+		int index = (int) (noise * this.biomeIds.length);
+		return this.biomeIds[Math.min(Math.max(0, index), this.biomeIds.length - 1)];
+	}
+
+	private int getModdedId(int x, int z)
+	{
+		int index = (int) (this.random(SALT_MODDED, x, -1, z) * this.moddedIds.length);
+		return this.moddedIds[Math.min(index, this.moddedIds.length - 1)];
+	}
+
+	/**
+	 * Smoothly interpolated value noise, between -1 and 1.
+	 */
+	private double noise(long salt, int x, int z, int scale)
+	{
+		int x0 = Math.floorDiv(x, scale);
+		int z0 = Math.floorDiv(z, scale);
+		double fx = smoothStep((double) (x - (x0 * scale)) / scale);
+		double fz = smoothStep((double) (z - (z0 * scale)) / scale);
+		double v00 = this.random(salt, x0, 0, z0);
+		double v10 = this.random(salt, x0 + 1, 0, z0);
+		double v01 = this.random(salt, x0, 0, z0 + 1);
+		double v11 = this.random(salt, x0 + 1, 0, z0 + 1);
+		double v0 = v00 + ((v10 - v00) * fx);
+		double v1 = v01 + ((v11 - v01) * fx);
+		return ((v0 + ((v1 - v0) * fz)) * 2.0) - 1.0;
+	}
+
+	private static double smoothStep(double t)
+	{
+		return t * t * (3.0 - (2.0 * t));
+	}
+
+	/**
+	 * A random value between 0 (inclusive) and 1 (exclusive) for a position, from a hash of the seed and the position.
+	 */
+	private double random(long salt, int x, int y, int z)
+	{
+		long h = this.seed + (salt * 0x9e3779b97f4a7c15L);
+		h = mix(h + x);
+		h = mix(h + y);
+		h = mix(h + z);
+		return (h >>> 11) * 0x1.0p-53;
+	}
+
+	private static long mix(long h)
+	{
+		// the finalizer of SplitMix64
+		h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+		h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+		return h ^ (h >>> 31);
+	}
+
+	private static int[] parseIds(String spec, int maxId, String name)
+	{
+		List<Integer> ids = new ArrayList<Integer>();
+
+		for (String part : spec.split(","))
+		{
+			String[] range = part.trim().split("-");
+
+			try
+			{
+				int first = Integer.parseInt(range[0].trim());
+				int last = range.length > 1 ? Integer.parseInt(range[1].trim()) : first;
+
+				if (range.length > 2 || first < 0 || last > maxId || first > last)
+				{
+					RegionManager.logWarning("Invalid %s '%s', the IDs must be between 0 and %d", name, part, maxId);
+					continue;
+				}
+
+				for (int id = first; id <= last; id++)
+				{
+					ids.add(id);
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				RegionManager.logWarning("Invalid %s '%s'", name, part);
+			}
+		}
+
+		int[] array = new int[ids.size()];
+
+		for (int i = 0; i < array.length; i++)
+		{
+			array[i] = ids.get(i);
+		}
+
+		return array;
+	}
+
+	private static long getTotalLength(File dir)
+	{
+		long length = 0;
+		File[] files = dir.listFiles();
+
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				length += file.length();
+			}
+		}
+
+		return length;
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length < 1)
+		{
+			RegionManager.logInfo("usage: java anvilmapper.WorldGenerator" +
+							" --out /path/to/world_save_directory" +
+							" [--regions N]" +
+							" [--seed N]" +
+							" [--height base[,amplitude]]" +
+							" [--section-density 0.0-1.0]" +
+							" [--biomes id,id-id,...]" +
+							" [--modded-ids id-id,...]" +
+							" [--modded-share 0.0-1.0]" +
+							" [--threads N]" +
+							" [--sync none|close|chunk]");
+			return;
+		}
+
+		String outputLocation = null;
+		int regions = 16;
+		long seed = 0;
+		int baseHeight = 64;
+		int amplitude = 32;
+		double sectionDensity = 0.02;
+		String biomesSpec = "0-4";
+		String moddedIdsSpec = null;
+		double moddedShare = 0.05;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].startsWith("--"))
+			{
+				String argValue = null;
+
+				try
+				{
+					if ((argValue = AnvilMapper.getArgumentValue(args, "out", i)) != null)
+					{
+						outputLocation = argValue;
+					}
+					else if ((argValue = AnvilMapper.getArgumentValue(args, "regions", i)) != null)
+					{
+						regions = Math.max(1, Integer.parseInt(argValue));
+					}
+					else if ((argValue = AnvilMapper.getArgumentValue(args, "seed", i)) != null)
+					{
+						seed = Long.parseLong(argValue);
+					}
+					else if ((argValue = AnvilMapper.getArgumentValue(args, "height", i)) != null)
+					{
+						String[] parts = argValue.split(",");
+						baseHeight = Integer.parseInt(parts[0].trim());
+						amplitude = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : amplitude;
+					}
+					else if ((argValue = AnvilMapper.getArgumentValue(args, "section-density", i)) != null)
+					{
+						sectionDensity = Double.parseDouble(argValue);
+					}
+					else if ((argValue = AnvilMapper.getArgumentValue(args, "biomes", i)) != null)
+					{
+						biomesSpec = argValue;
+					}
+					else if ((argValue = AnvilMapper.getArgumentValue(args, "modded-ids", i)) != null)
+					{
+						moddedIdsSpec = argValue;
+					}
+					else if ((argValue = AnvilMapper.getArgumentValue(args, "modded-share", i)) != null)
+					{
+						moddedShare = Double.parseDouble(argValue);
+					}
+					else if ((argValue = AnvilMapper.getArgumentValue(args, "threads", i)) != null)
+					{
+						threads = Integer.parseInt(argValue);
+					}
+					else if ((argValue = AnvilMapper.getArgumentValue(args, "sync", i)) != null)
+					{
+						RegionFile.SyncPolicy syncPolicy = RegionFile.SyncPolicy.fromName(argValue);
+
+						if (syncPolicy != null)
+						{
+							RegionFile.syncPolicy = syncPolicy;
+						}
+						else
+						{
+							RegionManager.logWarning("Invalid sync policy '%s', using '%s'", argValue, RegionFile.syncPolicy.name);
+						}
+					}
+				}
+				catch (NumberFormatException e)
+				{
+					RegionManager.logWarning("Invalid value '%s' for %s, using the default", argValue, args[i]);
+				}
+			}
+		}
+
+		if (outputLocation == null)
+		{
+			RegionManager.logError("No output directory given, use --out");
+			return;
+		}
+
+		int[] biomeIds = parseIds(biomesSpec, 255, "biome ID range");
+		int[] moddedIds = moddedIdsSpec != null ? parseIds(moddedIdsSpec, MAX_BLOCK_ID, "modded block ID range") : new int[0];
+		File worldDir = new File(outputLocation);
+		// whole region files are written, so their headers only need writing once
+		RegionFile.batchedWrites = true;
+		WorldGenerator generator = new WorldGenerator(worldDir, seed, baseHeight, amplitude, sectionDensity, biomeIds, moddedIds, moddedShare);
+
+		long startTime = System.nanoTime();
+		int failed = generator.generate(regions, threads);
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+
+		if (failed > 0)
+		{
+			RegionManager.logError("%d of %d regions failed to write", failed, regions);
+		}
+
+		RegionManager.logInfo("Generated %d regions (%d chunks, %.1f MB) in %.1f s", regions, regions * 1024,
+				getTotalLength(generator.regionDir) / 1048576.0, seconds);
+	}
+}
@@ -0,0 +1,145 @@
+package anvilmapper.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import mapwriter.region.RegionManager;
+
+/**
+ * Stores the region file header timestamps of every chunk as they were
+ * when the chunk was last rendered, keyed by the zoom level 0 region key.
+ * Used by the incremental render mode to only re-render changed chunks.
+ */
+public class ChunkTimestampManifest
+{
+	private static final int MAGIC = 0x414d5453; // "AMTS"
+	private static final int VERSION = 1;
+	private static final int CHUNKS_PER_REGION = 1024;
+	private final File file;
+	private final Map<Long, int[]> timestamps = new ConcurrentHashMap<Long, int[]>();
+
+	public ChunkTimestampManifest(File file)
+	{
+		this.file = file;
+	}
+
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	public int[] getTimestamps(long regionKey)
+	{
+		return this.timestamps.get(regionKey);
+	}
+
+	public void setTimestamps(long regionKey, int[] chunkTimestamps)
+	{
+		this.timestamps.put(regionKey, chunkTimestamps);
+	}
+
+	public void readFromFile()
+	{
+		this.timestamps.clear();
+
+		if (this.file.isFile() == false)
+		{
+			return;
+		}
+
+		DataInputStream data = null;
+
+		try
+		{
+			data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(this.file))));
+
+			if (data.readInt() != MAGIC || data.readInt() != VERSION)
+			{
+				RegionManager.logWarning("Ignoring the chunk timestamp manifest '%s' with an unknown format", this.file);
+				return;
+			}
+
+			int count = data.readInt();
+
+			for (int i = 0; i < count; i++)
+			{
+				long key = data.readLong();
+				int[] chunkTimestamps = new int[CHUNKS_PER_REGION];
+
+				for (int chunk = 0; chunk < CHUNKS_PER_REGION; chunk++)
+				{
+					chunkTimestamps[chunk] = data.readInt();
+				}
+
+				this.timestamps.put(key, chunkTimestamps);
+			}
+		}
+		catch (IOException e)
+		{
+			RegionManager.logWarning("Failed to read the chunk timestamp manifest '%s': %s", this.file, e);
+			this.timestamps.clear();
+		}
+		finally
+		{
+			if (data != null)
+			{
+				try { data.close(); } catch (IOException e) {}
+			}
+		}
+	}
+
+	public void writeToFile()
+	{
+		// write to a temporary file first, so that an interrupted run
+		// can't leave behind a truncated manifest
+		File tmpFile = new File(this.file.getPath() + ".tmp");
+		DataOutputStream data = null;
+
+		try
+		{
+			data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))));
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeInt(this.timestamps.size());
+
+			for (Entry<Long, int[]> entry : this.timestamps.entrySet())
+			{
+				data.writeLong(entry.getKey());
+
+				for (int chunkTimestamp : entry.getValue())
+				{
+					data.writeInt(chunkTimestamp);
+				}
+			}
+
+			data.close();
+			data = null;
+
+			if ((this.file.exists() && this.file.delete() == false) || tmpFile.renameTo(this.file) == false)
+			{
+				RegionManager.logError("Failed to replace the chunk timestamp manifest '%s'", this.file);
+			}
+		}
+		catch (IOException e)
+		{
+			RegionManager.logError("Failed to write the chunk timestamp manifest '%s': %s", this.file, e);
+		}
+		finally
+		{
+			if (data != null)
+			{
+				try { data.close(); } catch (IOException e) {}
+			}
+		}
+	}
+}
@@ -11,6 +11,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,11 +24,20 @@ public class BlockColours
 	public static final int MAX_BLOCKS = 4096;
 	public static final int MAX_META = 16;
 	public static final int MAX_BIOMES = 256;
+	// at most this many biomes get a resolved palette (16 MiB), the columns
+	// of any other biome are resolved block by block
+	public static final int MAX_RESOLVED_PALETTES = 32;
 	private int[] bcArray = new int[MAX_BLOCKS * MAX_META];
 	private int[] waterMultiplierArray = new int[MAX_BIOMES];
 	private int[] grassMultiplierArray = new int[MAX_BIOMES];
 	private int[] foliageMultiplierArray = new int[MAX_BIOMES];
 	private BlockType[] blockTypeArray = new BlockType[MAX_BLOCKS * MAX_META];
+	// the block colours multiplied by the biome colours, built on first use
+	// for each biome that is actually rendered (512 KiB per biome), up to
+	// MAX_RESOLVED_PALETTES biomes.
+	private final AtomicReferenceArray<long[]> resolvedPalettes = new AtomicReferenceArray<long[]>(MAX_BIOMES);
+	private final AtomicInteger resolvedPaletteCount = new AtomicInteger(0);
+	private volatile boolean hasResolvedPalettes = false;
 	private final Map<String, Integer> biomeIdMap;
 	private final Map<String, Integer> blockIdMap;
 	
@@ -57,14 +68,27 @@ public class BlockColours
 	
 	public void setColour(int blockAndMeta, int colour) {
 		this.bcArray[blockAndMeta & 0xffff] = colour;
+		this.invalidateResolvedPalettes();
 	}
 	
 	public int getColour(int blockID, int meta) {
 		return this.bcArray[((blockID & 0xfff) << 4) | (meta & 0xf)];
 	}
 	
+	// true if block ID 0 (air) is fully transparent for every metadata value,
+	// in which case it is safe to skip the air above the top of a column.
+	public boolean isAirTransparent() {
+		for (int meta = 0; meta < MAX_META; meta++) {
+			if (((this.bcArray[meta] >> 24) & 0xff) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	public void setColour(int blockID, int meta, int colour) {
 		this.bcArray[((blockID & 0xfff) << 4) | (meta & 0xf)] = colour;
+		this.invalidateResolvedPalettes();
 	}
 	
 	private int getGrassColourMultiplier(int biome) {
@@ -102,14 +126,77 @@ public class BlockColours
 	
 	public void setBiomeWaterShading(int biomeID, int colour) {
 		this.waterMultiplierArray[biomeID & 0xff] = colour;
+		this.invalidateResolvedPalettes();
 	}
 	
 	public void setBiomeGrassShading(int biomeID, int colour) {
 		this.grassMultiplierArray[biomeID & 0xff] = colour;
+		this.invalidateResolvedPalettes();
 	}
 	
 	public void setBiomeFoliageShading(int biomeID, int colour) {
 		this.foliageMultiplierArray[biomeID & 0xff] = colour;
+		this.invalidateResolvedPalettes();
+	}
+	
+	// the resolved colours are packed into a long as:
+	//   bits 48-55: block alpha
+	//   bits 32-47: block red * biome red
+	//   bits 16-31: block green * biome green
+	//   bits  0-15: block blue * biome blue
+	// the products are kept at full precision (0 - 65025) rather than
+	// scaled back to 8 bits, so blending them loses nothing.
+	public static long packResolvedColour(int colour, int biomeColour) {
+		long a = (colour >> 24) & 0xff;
+		long r = ((colour >> 16) & 0xff) * ((biomeColour >> 16) & 0xff);
+		long g = ((colour >> 8) & 0xff) * ((biomeColour >> 8) & 0xff);
+		long b = (colour & 0xff) * (biomeColour & 0xff);
+		return (a << 48) | (r << 32) | (g << 16) | b;
+	}
+	
+	// get the block colours multiplied by the biome colour multipliers of the
+	// given biome, indexed by blockAndMeta and packed by packResolvedColour.
+	// this replaces a getColour + getBiomeColour pair with one array load.
+	// returns null once MAX_RESOLVED_PALETTES palettes have been built, the
+	// caller then uses getResolvedColour instead.
+	public long[] getResolvedPalette(int biome) {
+		biome &= 0xff;
+		long[] palette = this.resolvedPalettes.get(biome);
+		if (palette == null) {
+			if (this.resolvedPaletteCount.incrementAndGet() > MAX_RESOLVED_PALETTES) {
+				this.resolvedPaletteCount.decrementAndGet();
+				return null;
+			}
+			palette = new long[MAX_BLOCKS * MAX_META];
+			for (int blockAndMeta = 0; blockAndMeta < palette.length; blockAndMeta++) {
+				palette[blockAndMeta] = packResolvedColour(this.bcArray[blockAndMeta], this.getBiomeColour(blockAndMeta, biome));
+			}
+			// another thread may have built the same palette at the same
+			// time, keep the first one so that the count stays right.
+			if (!this.resolvedPalettes.compareAndSet(biome, null, palette)) {
+				this.resolvedPaletteCount.decrementAndGet();
+				palette = this.resolvedPalettes.get(biome);
+			}
+			this.hasResolvedPalettes = true;
+		}
+		return palette;
+	}
+	
+	// the same as getResolvedPalette(biome)[blockAndMeta], for the biomes
+	// without a resolved palette
+	public long getResolvedColour(int blockAndMeta, int biome) {
+		blockAndMeta &= 0xffff;
+		return packResolvedColour(this.bcArray[blockAndMeta], this.getBiomeColour(blockAndMeta, biome & 0xff));
+	}
+	
+	private void invalidateResolvedPalettes() {
+		if (this.hasResolvedPalettes) {
+			this.hasResolvedPalettes = false;
+			for (int i = 0; i < MAX_BIOMES; i++) {
+				this.resolvedPalettes.set(i, null);
+			}
+			this.resolvedPaletteCount.set(0);
+		}
 	}
 	
 	private static BlockType getBlockTypeFromString(String typeString) {
@@ -153,10 +240,12 @@ public class BlockColours
 	
 	public void setBlockType(int blockId, int meta, BlockType type) {
 		this.blockTypeArray[((blockId & 0xfff) << 4) | (meta & 0xf)] = type;
+		this.invalidateResolvedPalettes();
 	}
 	
 	public void setBlockType(int blockAndMeta, BlockType type) {
 		this.blockTypeArray[blockAndMeta & 0xffff] = type;
+		this.invalidateResolvedPalettes();
 	}
 	
 	public static int getColourFromString(String s) {
@@ -0,0 +1,165 @@
+package mapwriter.region;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/*
+	A DataInput that reads big endian values straight from a byte array,
+	without the InputStream layers of a DataInputStream. The NBT of the
+	chunks is read through one of these (see ChunkInflater).
+
+	Reading past the end of the data throws an EOFException, like
+	DataInputStream does. The array is not copied, so it must not change
+	while it is being read.
+*/
+public final class ByteArrayDataInput implements DataInput {
+
+	private byte[] buf;
+	private int position;
+	private int end;
+
+	public ByteArrayDataInput() {
+		this(new byte[0], 0, 0);
+	}
+
+	public ByteArrayDataInput(byte[] buf, int offset, int length) {
+		this.reset(buf, offset, length);
+	}
+
+	// read 'length' bytes of 'buf' from 'offset'
+	public void reset(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	// the number of bytes left to read
+	public int remaining() {
+		return this.end - this.position;
+	}
+
+	private int next(int n) throws EOFException {
+		int start = this.position;
+		if (n > this.end - start) {
+			this.position = this.end;
+			throw new EOFException();
+		}
+		this.position = start + n;
+		return start;
+	}
+
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		this.readFully(b, 0, b.length);
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		System.arraycopy(this.buf, this.next(len), b, off, len);
+	}
+
+	@Override
+	public int skipBytes(int n) {
+		n = Math.max(0, Math.min(n, this.remaining()));
+		this.position += n;
+		return n;
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		return this.buf[this.next(1)] != 0;
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		return this.buf[this.next(1)];
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return this.buf[this.next(1)] & 0xff;
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		int i = this.next(2);
+		return (short) ((this.buf[i] << 8) | (this.buf[i + 1] & 0xff));
+	}
+
+	@Override
+	public int readUnsignedShort() throws IOException {
+		int i = this.next(2);
+		return ((this.buf[i] & 0xff) << 8) | (this.buf[i + 1] & 0xff);
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		return (char) this.readUnsignedShort();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		int i = this.next(4);
+		return (this.buf[i] << 24) | ((this.buf[i + 1] & 0xff) << 16) | ((this.buf[i + 2] & 0xff) << 8) | (this.buf[i + 3] & 0xff);
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		int i = this.next(8);
+		long high = (this.buf[i] << 24) | ((this.buf[i + 1] & 0xff) << 16) | ((this.buf[i + 2] & 0xff) << 8) | (this.buf[i + 3] & 0xff);
+		long low = (this.buf[i + 4] << 24) | ((this.buf[i + 5] & 0xff) << 16) | ((this.buf[i + 6] & 0xff) << 8) | (this.buf[i + 7] & 0xff);
+		return (high << 32) | (low & 0xffffffffL);
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(this.readInt());
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(this.readLong());
+	}
+
+	// like DataInputStream.readLine, a line ends at "\n", "\r" or "\r\n" and
+	// each byte is one character. returns null at the end of the data.
+	@Override
+	public String readLine() {
+		if (this.position >= this.end) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		while (this.position < this.end) {
+			int c = this.buf[this.position++] & 0xff;
+			if (c == '\n') {
+				break;
+			}
+			if (c == '\r') {
+				if ((this.position < this.end) && (this.buf[this.position] == '\n')) {
+					this.position++;
+				}
+				break;
+			}
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String readUTF() throws IOException {
+		int length = this.readUnsignedShort();
+		int start = this.next(length);
+		// the names and strings in chunk NBT are nearly always ASCII, which
+		// is the same in modified UTF-8. anything else goes the slow way.
+		for (int i = start; i < start + length; i++) {
+			if (this.buf[i] < 0) {
+				this.position = start - 2;
+				return DataInputStream.readUTF(this);
+			}
+		}
+		return new String(this.buf, start, length, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,79 @@
+package mapwriter.region;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/*
+	Compresses the NBT of a chunk in one go into a buffer that is reused for
+	every chunk, ready to be written to a region file (see
+	RegionFile.getChunkDataOutputStream).
+
+	Each thread has its own ChunkDeflater (see get()), with a Deflater that is
+	reset between chunks rather than a new native zlib context for every
+	chunk. The compressed data starts at byte 5 of the output, leaving room
+	for the length and version of the chunk data in the region file, and the
+	output has room to pad the chunk to whole sectors.
+
+	The buffers are only valid until the next chunk is compressed on the same
+	thread.
+*/
+public final class ChunkDeflater {
+
+	// the length and version bytes before the compressed data of a chunk
+	public static final int HEADER_SIZE = 5;
+
+	private static final ThreadLocal<ChunkDeflater> threadDeflater = new ThreadLocal<ChunkDeflater>() {
+		@Override
+		protected ChunkDeflater initialValue() {
+			return new ChunkDeflater();
+		}
+	};
+
+	private final Deflater deflater = new Deflater();
+	// the uncompressed NBT of a chunk
+	private byte[] input = new byte[128 * 1024];
+	private byte[] output = new byte[16 * 4096];
+
+	private ChunkDeflater() {
+	}
+
+	// the ChunkDeflater of the calling thread
+	public static ChunkDeflater get() {
+		return threadDeflater.get();
+	}
+
+	// the buffer to write the uncompressed NBT into
+	public byte[] getInputBuffer() {
+		return this.input;
+	}
+
+	// keep a buffer that replaced the input buffer when it had to grow
+	public void setInputBuffer(byte[] input) {
+		this.input = input;
+	}
+
+	public byte[] getOutput() {
+		return this.output;
+	}
+
+	// compress 'length' bytes of data, returns the length of the compressed
+	// data in the output
+	public int deflate(byte[] data, int offset, int length) {
+		this.deflater.reset();
+		this.deflater.setInput(data, offset, length);
+		this.deflater.finish();
+		int size = HEADER_SIZE;
+		while (!this.deflater.finished()) {
+			if (size == this.output.length) {
+				this.output = Arrays.copyOf(this.output, this.output.length * 2);
+			}
+			size += this.deflater.deflate(this.output, size, this.output.length - size);
+		}
+		// room for the padding to whole sectors
+		int paddedSize = (size + 4095) & -4096;
+		if (paddedSize > this.output.length) {
+			this.output = Arrays.copyOf(this.output, paddedSize);
+		}
+		return size - HEADER_SIZE;
+	}
+}
@@ -0,0 +1,83 @@
+package mapwriter.region;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/*
+	Inflates the zlib compressed data of a chunk in one go into a buffer
+	that is reused for every chunk, and returns a ByteArrayDataInput on the
+	inflated NBT.
+
+	Each thread has its own ChunkInflater (see get()). Its Inflater is reset
+	between chunks rather than creating a new native zlib context for every
+	chunk, which would only be freed when the garbage collector gets to it.
+	The buffers grow to the largest chunk the thread has seen and are kept,
+	as is the Inflater, for as long as the thread lives.
+
+	The returned reader and the input buffer are only valid until the next
+	chunk is inflated on the same thread.
+*/
+public final class ChunkInflater {
+
+	private static final ThreadLocal<ChunkInflater> threadInflater = new ThreadLocal<ChunkInflater>() {
+		@Override
+		protected ChunkInflater initialValue() {
+			return new ChunkInflater();
+		}
+	};
+
+	private final Inflater inflater = new Inflater();
+	private final ByteArrayDataInput reader = new ByteArrayDataInput();
+	// the sectors of a chunk as read from the region file
+	private byte[] input = new byte[4 * 4096];
+	// a vanilla chunk inflates to around 40 to 100 KB
+	private byte[] output = new byte[128 * 1024];
+
+	private ChunkInflater() {
+	}
+
+	// the ChunkInflater of the calling thread
+	public static ChunkInflater get() {
+		return threadInflater.get();
+	}
+
+	// the buffer to read compressed data into
+	public byte[] getInputBuffer() {
+		return this.input;
+	}
+
+	// the buffer to read compressed data into, grown to at least 'length' bytes
+	public byte[] getInputBuffer(int length) {
+		if (this.input.length < length) {
+			this.input = new byte[Math.max(length, this.input.length * 2)];
+		}
+		return this.input;
+	}
+
+	// inflate 'length' bytes of zlib data starting at data[offset]
+	public ByteArrayDataInput inflate(byte[] data, int offset, int length) throws IOException {
+		this.inflater.reset();
+		this.inflater.setInput(data, offset, length);
+		int size = 0;
+		try {
+			while (!this.inflater.finished()) {
+				if (size == this.output.length) {
+					this.output = Arrays.copyOf(this.output, this.output.length * 2);
+				}
+				int n = this.inflater.inflate(this.output, size, this.output.length - size);
+				if ((n == 0) && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+					throw new EOFException("unexpected end of compressed chunk data");
+				}
+				size += n;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage() != null ? e.getMessage() : "invalid compressed chunk data");
+		}
+		this.reader.reset(this.output, 0, size);
+		return this.reader;
+	}
+}
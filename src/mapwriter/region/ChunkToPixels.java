@@ -1,5 +1,7 @@
 package mapwriter.region;
 
+import java.util.Arrays;
+
 public class ChunkToPixels {
 	
 	// values that change how height shading algorithm works
@@ -8,10 +10,41 @@ public class ChunkToPixels {
 	public static final double brightenAmplitude = 0.7;
 	public static final double darkenAmplitude = 1.4;
 	
+	// the column colours are blended in fixed point, with FIXED_ONE as 1.0
+	private static final int FIXED_SHIFT = 16;
+	private static final int FIXED_ONE = 1 << FIXED_SHIFT;
+	// divides (blended colour * shading) back to the range [0, 255]. the blended
+	// colour is a sum of (column alpha * block alpha * block colour * biome colour),
+	// so it is scaled by FIXED_ONE * 255 * 255 * 255, and the shading by FIXED_ONE.
+	private static final long SHADED_COLOUR_DIVISOR = (long) FIXED_ONE * FIXED_ONE * 255L * 255L;
+	
+	// the height shading multipliers (1.0 + shading) in fixed point, indexed by
+	// the height difference to the neighbours, scaled to two samples, plus
+	// MAX_HEIGHT_DIFF. this replaces the two Math.pow calls per pixel.
+	private static final int MAX_HEIGHT_DIFF = 2 * 255;
+	private static final int[] heightShadingTable = createHeightShadingTable();
+	
+	private static int[] createHeightShadingTable() {
+		int[] table = new int[(MAX_HEIGHT_DIFF * 2) + 1];
+		for (int heightDiff = -MAX_HEIGHT_DIFF; heightDiff <= MAX_HEIGHT_DIFF; heightDiff++) {
+			double h = (double) heightDiff / (double) MAX_HEIGHT_DIFF;
+			double heightShading = (h >= 0.0) ?
+					Math.pow(h, brightenExponent) * brightenAmplitude :
+					-Math.pow(-h, darkenExponent) * darkenAmplitude;
+			table[heightDiff + MAX_HEIGHT_DIFF] = (int) Math.round((1.0 + heightShading) * FIXED_ONE);
+		}
+		return table;
+	}
+	
 	public static int getFirstNonOpaqueBlockY(BlockColours bc, MwChunk chunk, int x, int y, int z) {
 		boolean found = false;
 		// search in a column downwards for the first non opaque block (alpha != 0xff)
 		for (; (y >= 0) && !found; y--) {
+			// jump over sections that are opaque all the way through
+			if (((y & 15) == 15) && chunk.isSectionOpaque(bc, y >> 4)) {
+				y -= 15;
+				continue;
+			}
 			int blockAndMeta = chunk.getBlockAndMetadata(x, y, z);
 			int colour = bc.getColour(blockAndMeta);
 			if (((colour >> 24) & 0xff) != 0xff) {
@@ -21,6 +54,61 @@ public class ChunkToPixels {
 		return y + 1;
 	}
 	
+	// true if y is the top of a section that is fully transparent, so the
+	// column loops can skip to the top of the next section down. the loops
+	// stop before y = 0, so the lowest section is never skipped, which
+	// keeps the height at 0 for columns without an opaque block.
+	private static boolean isTransparentSectionTop(BlockColours bc, MwChunk chunk, int y) {
+		return ((y & 15) == 15) && (y > 15) && chunk.isSectionTransparent(bc, y >> 4);
+	}
+	
+	// get the topmost block height to start rendering a column at.
+	// for maps without a ceiling this is the height of the highest block in the column,
+	// or in the chunk if air is not transparent with the current block colours.
+	// for maps with a ceiling y is the height of the first non opaque block starting from
+	// the ceiling.
+	public static int getColumnStartY(BlockColours bc, MwChunk chunk, int x, int z, boolean caveMap, boolean airTransparent) {
+		if (caveMap) {
+			return getFirstNonOpaqueBlockY(bc, chunk, x, chunk.maxHeight - 1, z);
+		} else if (airTransparent) {
+			// the loops never look at y = 0, so an empty column gives 0 either way
+			return Math.max(0, Math.min(chunk.getColumnTop(x, z), chunk.maxHeight - 1));
+		}
+		return chunk.maxHeight - 1;
+	}
+	
+	// get the height of the first opaque block in a column, starting from the same
+	// block that getMapPixels would start from. returns 0 if there is no opaque block.
+	public static int getColumnHeight(BlockColours bc, MwChunk chunk, int x, int z) {
+		boolean caveMap = (chunk.dimension == -1);
+		int y = getColumnStartY(bc, chunk, x, z, caveMap, bc.isAirTransparent());
+		for (; y > 0; y--) {
+			if (isTransparentSectionTop(bc, chunk, y)) {
+				y -= 15;
+				continue;
+			}
+			int colour = bc.getColour(chunk.getBlockAndMetadata(x, y, z));
+			if (((colour >> 24) & 0xff) == 0xff) {
+				break;
+			}
+		}
+		return y;
+	}
+	
+	// store the column heights of a chunk in the alpha channel of the pixels,
+	// leaving the colour untouched. used to restore the heights needed by the
+	// height shading of neighbouring chunks when only part of a region is
+	// being re-rendered on top of a previously saved image.
+	public static void getMapHeights(BlockColours bc, MwChunk chunk, int[] pixels, int offset, int scanSize) {
+		for (int z = 0; z < MwChunk.SIZE; z++) {
+			for (int x = 0; x < MwChunk.SIZE; x++) {
+				int pixelOffset = offset + (z * scanSize) + x;
+				int y = getColumnHeight(bc, chunk, x, z);
+				pixels[pixelOffset] = ((y & 0xff) << 24) | (pixels[pixelOffset] & 0xffffff);
+			}
+		}
+	}
+	
 	// get the height shading of a pixel.
 	// requires the pixel to the west and the pixel to the north to have their
 	// heights stored in the alpha channel to work.
@@ -60,80 +148,135 @@ public class ChunkToPixels {
 		return heightShading;
 	}
 	
+	// the same as 1.0 + getPixelHeightShading, as a fixed point value
+	// looked up from the height shading table.
+	public static int getPixelHeightShadingFixed(int[] pixels, int offset, int scanSize, int height) {
+		// if (pixelX > 0) and if (pixelZ > 0)
+		int heightW = ((offset & (scanSize - 1)) != 0) ? ((pixels[offset - 1] >> 24) & 0xff) : 0;
+		int heightN = (offset >= scanSize) ? ((pixels[offset - scanSize] >> 24) & 0xff) : 0;
+		return getHeightShadingFixed(height, heightW, heightN);
+	}
+	
+	// the height shading from the heights of the west and north neighbours,
+	// which are left out if they are 0 (no neighbour or no opaque block) or
+	// 255 (not rendered).
+	private static int getHeightShadingFixed(int height, int heightW, int heightN) {
+		int samples = 0;
+		int heightDiff = 0;
+		
+		if ((heightW > 0) && (heightW < 255)) {
+			heightDiff += height - heightW;
+			samples++;
+		}
+		if ((heightN > 0) && (heightN < 255)) {
+			heightDiff += height - heightN;
+			samples++;
+		}
+		
+		if (samples == 0) {
+			return FIXED_ONE;
+		}
+		// scale a single sample difference to the two sample range of the table
+		if (samples == 1) {
+			heightDiff *= 2;
+		}
+		return heightShadingTable[heightDiff + MAX_HEIGHT_DIFF];
+	}
+	
+	private static int getShadedColourComponent(long colour, int shading) {
+		long c = (colour * shading) / SHADED_COLOUR_DIVISOR;
+		return (int) Math.min(Math.max(0L, c), 255L);
+	}
+	
+	// blend the colours of the blocks in a column, from the top down to the first
+	// opaque block. the blended colour, before the height shading, is stored in
+	// rgb[i], rgb[i + 1] and rgb[i + 2], and the height of the column is returned.
+	private static int resolveColumn(BlockColours bc, MwChunk chunk, int x, int z, boolean caveMap, boolean airTransparent, long[] rgb, int i) {
+		// calculate the colour of a pixel by alpha blending the colour of each block
+		// in a column until an opaque block is reached.
+		// y is topmost block height to start rendering at.
+		int y = getColumnStartY(bc, chunk, x, z, caveMap, airTransparent);
+		
+		int biome = chunk.getBiome(x, z);
+		// null if there are too many biomes for every biome to have a palette
+		long[] palette = bc.getResolvedPalette(biome);
+		
+		// for every block in the column starting from the highest:
+		//  - get the block colour multiplied by the biome shading for each
+		//    component from the resolved palette of the column's biome
+		//  - this shaded block colour is alpha blended with the running
+		//    colour for this column
+		//
+		// so the final map colour is an alpha blended stack of all the
+		// individual shaded block colours in the sequence [yStart .. yEnd]
+		//
+		// note that the "front to back" alpha blending algorithm is used
+		// rather than the more common "back to front".
+		//
+		// the blending is done in fixed point. 'a' is the remaining column
+		// transparency (FIXED_ONE = fully transparent), and r, g and b are
+		// the sums of a * block alpha * (block colour * biome colour), with
+		// the colour products in the range [0, 255 * 255].
+		
+		int a = FIXED_ONE;
+		long r = 0;
+		long g = 0;
+		long b = 0;
+		for (; y > 0; y--) {
+			// jump over sections without any visible blocks
+			if (isTransparentSectionTop(bc, chunk, y)) {
+				y -= 15;
+				continue;
+			}
+			int blockAndMeta = chunk.getBlockAndMetadata(x, y, z);
+			long c = (palette != null) ? palette[blockAndMeta] : bc.getResolvedColour(blockAndMeta, biome);
+			int alpha = (int) (c >>> 48);
+			// no need to process block if it is transparent
+			if (alpha > 0) {
+				// alpha blend, the biome colour alpha is implicitly opaque
+				long weight = (long) a * alpha;
+				r += weight * ((c >>> 32) & 0xffff);
+				g += weight * ((c >>> 16) & 0xffff);
+				b += weight * (c & 0xffff);
+				a = ((a * (255 - alpha)) + 127) / 255;
+			}
+			// break when an opaque block is encountered
+			if (alpha == 0xff) {
+				break;
+			}
+		}
+		
+		rgb[i] = r;
+		rgb[i + 1] = g;
+		rgb[i + 2] = b;
+		return y;
+	}
+	
+	// apply the height shading to a blended column colour and convert it to a
+	// packed ARGB pixel, with the column height in the alpha channel.
+	private static int getShadedPixel(long[] rgb, int i, int shading, int y) {
+		return ((y & 0xff) << 24) |
+				(getShadedColourComponent(rgb[i], shading) << 16) |
+				(getShadedColourComponent(rgb[i + 1], shading) << 8) |
+				getShadedColourComponent(rgb[i + 2], shading);
+	}
+	
 	public static void getMapPixels(BlockColours bc, MwChunk chunk, int[] pixels, int offset, int scanSize) {
+		long startTime = RenderMetrics.start();
 		// if the dimension has a roof caveMap should be enabled
 		boolean caveMap = (chunk.dimension == -1);
+		boolean airTransparent = bc.isAirTransparent();
+		long[] rgb = new long[3];
 		
 		for (int z = 0; z < MwChunk.SIZE; z++) {
 			for (int x = 0; x < MwChunk.SIZE; x++) {
-				
-				// calculate the colour of a pixel by alpha blending the colour of each block
-				// in a column until an opaque block is reached.
-				// y is topmost block height to start rendering at.
-				// for maps without a ceiling y is simply the height of the highest block in that chunk.
-				// for maps with a ceiling y is the height of the first non opaque block starting from
-				// the ceiling.
-				int y = (caveMap) ? getFirstNonOpaqueBlockY(bc, chunk, x, chunk.maxHeight - 1, z) : chunk.maxHeight - 1;
-				
-				int biome = chunk.getBiome(x, z);
-				
-				// for every block in the column starting from the highest:
-				//  - get the block colour
-				//  - get the biome shading
-				//  - extract colour components as doubles in the range [0.0, 1.0]
-				//  - the shaded block colour is simply the block colour multiplied
-				//    by the biome shading for each component
-				//  - this shaded block colour is alpha blended with the running
-				//    colour for this column
-				//
-				// so the final map colour is an alpha blended stack of all the
-				// individual shaded block colours in the sequence [yStart .. yEnd]
-				//
-				// note that the "front to back" alpha blending algorithm is used
-				// rather than the more common "back to front".
-				//
-				
-				double a = 1.0;
-				double r = 0.0;
-				double g = 0.0;
-				double b = 0.0;
-				for (; y > 0; y--) {
-					int blockAndMeta = chunk.getBlockAndMetadata(x, y, z);
-					
-					int c1 = bc.getColour(blockAndMeta);
-					int alpha = (c1 >> 24) & 0xff;
-					// no need to process block if it is transparent
-					if (alpha > 0) {
-						int c2 = bc.getBiomeColour(blockAndMeta, biome);
-						
-						// extract colour components as normalized doubles
-						double c1A = (double) (alpha) / 255.0;
-						double c1R = (double) ((c1 >> 16) & 0xff) / 255.0;
-						double c1G = (double) ((c1 >> 8)  & 0xff) / 255.0;
-						double c1B = (double) ((c1 >> 0)  & 0xff) / 255.0;
-						
-						// c2A is implicitly 1.0 (opaque)
-						double c2R = (double) ((c2 >> 16) & 0xff) / 255.0;
-						double c2G = (double) ((c2 >> 8)  & 0xff) / 255.0;
-						double c2B = (double) ((c2 >> 0)  & 0xff) / 255.0;
-						
-						// alpha blend and multiply
-						r = r + (a * c1A * c1R * c2R);
-						g = g + (a * c1A * c1G * c2G);
-						b = b + (a * c1A * c1B * c2B);
-						a = a * (1.0 - c1A);
-					}
-					// break when an opaque block is encountered
-					if (alpha == 0xff) {
-						break;
-					}
-				}
+				int y = resolveColumn(bc, chunk, x, z, caveMap, airTransparent, rgb, 0);
 				
 				// get height shading based on neighboring pixel heights.
 				// need to first add a dummy colour value with the block
 				// height in the alpha channel.
 				int pixelOffset = offset + (z * scanSize) + x;
-				double shading = 1.0 + getPixelHeightShading(pixels, pixelOffset, scanSize, y);
+				int shading = getPixelHeightShadingFixed(pixels, pixelOffset, scanSize, y);
 				
 				/*
 				// darken blocks depending on how far away they are from this depth slice
@@ -144,18 +287,70 @@ public class ChunkToPixels {
 					}
 				}*/
 				
-				// apply the height shading
-				r = Math.min(Math.max(0.0, r * shading), 1.0);
-				g = Math.min(Math.max(0.0, g * shading), 1.0);
-				b = Math.min(Math.max(0.0, b * shading), 1.0);
-				
-				// now we have our final RGB values as doubles, convert to a packed ARGB pixel.
-				pixels[pixelOffset] = ((y & 0xff) << 24) |
-						((((int) (r * 255.0)) & 0xff) << 16) |
-						((((int) (g * 255.0)) & 0xff) << 8) |
-						((((int) (b * 255.0)) & 0xff));
+				// apply the height shading and convert to a packed ARGB pixel.
+				pixels[pixelOffset] = getShadedPixel(rgb, 0, shading, y);
 			}
 		}
 		//MwUtil.log("chunk (%d, %d): height %d, %d blocks processed", thisx, thisz, maxHeight, count);
+		RenderMetrics.stop(RenderMetrics.Stage.CHUNK_RENDER, startTime);
+	}
+	
+	// the planes that the two pass rendering keeps between its passes: the
+	// blended colour (before the height shading) and the height of each column,
+	// indexed like the pixels.
+	public static final class ColumnPlanes {
+		final long[] colours;
+		final byte[] heights;
+		
+		public ColumnPlanes(int size) {
+			this.colours = new long[size * 3];
+			this.heights = new byte[size];
+		}
+		
+		// mark every column as not rendered, as the pixels of a new region are
+		public void clear() {
+			Arrays.fill(this.heights, (byte) 0xff);
+		}
+	}
+	
+	// the two pass rendering gives the same pixels as calling getMapPixels for
+	// every chunk of a region in order, but the chunks do not depend on each
+	// other within a pass, so they can be rendered by several threads.
+	//
+	// the first pass resolves the colour and height of every column of a chunk
+	// into the planes. once the first pass is done for all the chunks, the
+	// second pass applies the height shading to the chunks, from the heights of
+	// the west and north neighbours in the height plane, and writes the pixels.
+	public static void resolveColumns(BlockColours bc, MwChunk chunk, ColumnPlanes planes, int offset, int scanSize) {
+		long startTime = RenderMetrics.start();
+		boolean caveMap = (chunk.dimension == -1);
+		boolean airTransparent = bc.isAirTransparent();
+		
+		for (int z = 0; z < MwChunk.SIZE; z++) {
+			for (int x = 0; x < MwChunk.SIZE; x++) {
+				int pixelOffset = offset + (z * scanSize) + x;
+				int y = resolveColumn(bc, chunk, x, z, caveMap, airTransparent, planes.colours, pixelOffset * 3);
+				planes.heights[pixelOffset] = (byte) y;
+			}
+		}
+		RenderMetrics.stop(RenderMetrics.Stage.CHUNK_RENDER, startTime);
+	}
+	
+	public static void shadeColumns(ColumnPlanes planes, int[] pixels, int offset, int scanSize) {
+		long startTime = RenderMetrics.start();
+		byte[] heights = planes.heights;
+		
+		for (int z = 0; z < MwChunk.SIZE; z++) {
+			for (int x = 0; x < MwChunk.SIZE; x++) {
+				int pixelOffset = offset + (z * scanSize) + x;
+				int y = heights[pixelOffset] & 0xff;
+				// if (pixelX > 0) and if (pixelZ > 0)
+				int heightW = ((pixelOffset & (scanSize - 1)) != 0) ? (heights[pixelOffset - 1] & 0xff) : 0;
+				int heightN = (pixelOffset >= scanSize) ? (heights[pixelOffset - scanSize] & 0xff) : 0;
+				int shading = getHeightShadingFixed(y, heightW, heightN);
+				pixels[pixelOffset] = getShadedPixel(planes.colours, pixelOffset * 3, shading, y);
+			}
+		}
+		RenderMetrics.stop(RenderMetrics.Stage.HILLSHADE, startTime);
 	}
 }
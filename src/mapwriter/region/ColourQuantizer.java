@@ -0,0 +1,245 @@
+package mapwriter.region;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+	Reduces an image to a palette of at most 256 colours for indexed PNGs.
+
+	Images with at most 256 distinct colours get an exact palette. Otherwise
+	the colours are counted in a histogram with 5 bits per channel, and the
+	histogram is split into 256 boxes with the median cut algorithm. Each
+	box becomes one palette entry, which is the average of the pixels in it.
+
+	The result only depends on the pixels, so the same image always gets the
+	same palette. An instance keeps its histogram buffers between images, so
+	it should only be used by one thread at a time.
+*/
+public class ColourQuantizer {
+
+	public static final int MAX_COLOURS = 256;
+	private static final int BITS = 5;
+	private static final int SIDE = 1 << BITS;
+	private static final int BINS = SIDE * SIDE * SIDE;
+	private static final int HASH_SIZE = 1024;
+
+	private final int[] counts = new int[BINS];
+	private final int[] sumR = new int[BINS];
+	private final int[] sumG = new int[BINS];
+	private final int[] sumB = new int[BINS];
+	private final byte[] binIndex = new byte[BINS];
+
+	private final int[] hashKeys = new int[HASH_SIZE];
+	private final int[] hashValues = new int[HASH_SIZE];
+
+	private static int getBin(int r, int g, int b) {
+		return ((r >> (8 - BITS)) << (BITS * 2)) | ((g >> (8 - BITS)) << BITS) | (b >> (8 - BITS));
+	}
+
+	// fills palette (0xrrggbb colours) and indices (one palette index per pixel,
+	// w * h in row order), and returns the number of palette entries used.
+	public int quantize(int[] pixels, int offset, int scanSize, int w, int h, int[] palette, byte[] indices) {
+		int colourCount = this.getExactPalette(pixels, offset, scanSize, w, h, palette, indices);
+		if (colourCount < 0) {
+			colourCount = this.getMedianCutPalette(pixels, offset, scanSize, w, h, palette, indices);
+		}
+		return colourCount;
+	}
+
+	private int hashSlot(int rgb) {
+		int slot = ((rgb * 0x9e3779b1) >>> 22) & (HASH_SIZE - 1);
+		while ((this.hashKeys[slot] != -1) && (this.hashKeys[slot] != rgb)) {
+			slot = (slot + 1) & (HASH_SIZE - 1);
+		}
+		return slot;
+	}
+
+	// returns -1 if the image has more than MAX_COLOURS colours
+	private int getExactPalette(int[] pixels, int offset, int scanSize, int w, int h, int[] palette, byte[] indices) {
+		Arrays.fill(this.hashKeys, -1);
+		int colourCount = 0;
+		int lastRgb = -1;
+		for (int z = 0; z < h; z++) {
+			int p = offset + (z * scanSize);
+			for (int x = 0; x < w; x++) {
+				int rgb = pixels[p + x] & 0xffffff;
+				if (rgb != lastRgb) {
+					int slot = this.hashSlot(rgb);
+					if (this.hashKeys[slot] == -1) {
+						if (colourCount == MAX_COLOURS) {
+							return -1;
+						}
+						this.hashKeys[slot] = rgb;
+						palette[colourCount++] = rgb;
+					}
+					lastRgb = rgb;
+				}
+			}
+		}
+
+		// sort the palette so that it does not depend on the pixel order
+		Arrays.sort(palette, 0, colourCount);
+		for (int i = 0; i < colourCount; i++) {
+			this.hashValues[this.hashSlot(palette[i])] = i;
+		}
+
+		int i = 0;
+		for (int z = 0; z < h; z++) {
+			int p = offset + (z * scanSize);
+			for (int x = 0; x < w; x++) {
+				indices[i++] = (byte) this.hashValues[this.hashSlot(pixels[p + x] & 0xffffff)];
+			}
+		}
+		return colourCount;
+	}
+
+	private static class Box {
+		int r0, r1, g0, g1, b0, b1;
+		long count;
+
+		Box(int r0, int r1, int g0, int g1, int b0, int b1) {
+			this.r0 = r0; this.r1 = r1;
+			this.g0 = g0; this.g1 = g1;
+			this.b0 = b0; this.b1 = b1;
+		}
+
+		boolean canSplit() {
+			return (this.r0 < this.r1) || (this.g0 < this.g1) || (this.b0 < this.b1);
+		}
+	}
+
+	// shrink the box to the occupied bins and count the pixels in it
+	private void shrink(Box box) {
+		int r0 = SIDE, r1 = -1, g0 = SIDE, g1 = -1, b0 = SIDE, b1 = -1;
+		long count = 0;
+		for (int r = box.r0; r <= box.r1; r++) {
+			for (int g = box.g0; g <= box.g1; g++) {
+				int bin = (r << (BITS * 2)) | (g << BITS);
+				for (int b = box.b0; b <= box.b1; b++) {
+					int n = this.counts[bin | b];
+					if (n > 0) {
+						count += n;
+						r0 = Math.min(r0, r); r1 = Math.max(r1, r);
+						g0 = Math.min(g0, g); g1 = Math.max(g1, g);
+						b0 = Math.min(b0, b); b1 = Math.max(b1, b);
+					}
+				}
+			}
+		}
+		box.r0 = r0; box.r1 = r1;
+		box.g0 = g0; box.g1 = g1;
+		box.b0 = b0; box.b1 = b1;
+		box.count = count;
+	}
+
+	// split the box at the median of its longest axis, returning the upper half
+	private Box split(Box box) {
+		int rLen = box.r1 - box.r0;
+		int gLen = box.g1 - box.g0;
+		int bLen = box.b1 - box.b0;
+		int axis = (rLen >= gLen) ? ((rLen >= bLen) ? 0 : 2) : ((gLen >= bLen) ? 1 : 2);
+		int lo = (axis == 0) ? box.r0 : ((axis == 1) ? box.g0 : box.b0);
+		int hi = (axis == 0) ? box.r1 : ((axis == 1) ? box.g1 : box.b1);
+
+		// pixel counts of each slice along the axis
+		long[] slices = new long[SIDE];
+		for (int r = box.r0; r <= box.r1; r++) {
+			for (int g = box.g0; g <= box.g1; g++) {
+				int bin = (r << (BITS * 2)) | (g << BITS);
+				for (int b = box.b0; b <= box.b1; b++) {
+					slices[(axis == 0) ? r : ((axis == 1) ? g : b)] += this.counts[bin | b];
+				}
+			}
+		}
+		int cut = lo;
+		long below = slices[lo];
+		while ((cut < hi - 1) && ((below * 2) < box.count)) {
+			cut++;
+			below += slices[cut];
+		}
+
+		Box upper = new Box(box.r0, box.r1, box.g0, box.g1, box.b0, box.b1);
+		if (axis == 0) {
+			box.r1 = cut;
+			upper.r0 = cut + 1;
+		} else if (axis == 1) {
+			box.g1 = cut;
+			upper.g0 = cut + 1;
+		} else {
+			box.b1 = cut;
+			upper.b0 = cut + 1;
+		}
+		this.shrink(box);
+		this.shrink(upper);
+		return upper;
+	}
+
+	private int getMedianCutPalette(int[] pixels, int offset, int scanSize, int w, int h, int[] palette, byte[] indices) {
+		Arrays.fill(this.counts, 0);
+		Arrays.fill(this.sumR, 0);
+		Arrays.fill(this.sumG, 0);
+		Arrays.fill(this.sumB, 0);
+		for (int z = 0; z < h; z++) {
+			int p = offset + (z * scanSize);
+			for (int x = 0; x < w; x++) {
+				int pixel = pixels[p + x];
+				int r = (pixel >> 16) & 0xff;
+				int g = (pixel >> 8) & 0xff;
+				int b = pixel & 0xff;
+				int bin = getBin(r, g, b);
+				this.counts[bin]++;
+				this.sumR[bin] += r;
+				this.sumG[bin] += g;
+				this.sumB[bin] += b;
+			}
+		}
+
+		List<Box> boxes = new ArrayList<Box>(MAX_COLOURS);
+		Box first = new Box(0, SIDE - 1, 0, SIDE - 1, 0, SIDE - 1);
+		this.shrink(first);
+		boxes.add(first);
+		while (boxes.size() < MAX_COLOURS) {
+			// split the box with the most pixels (the first one if equal)
+			Box largest = null;
+			for (Box box : boxes) {
+				if (box.canSplit() && ((largest == null) || (box.count > largest.count))) {
+					largest = box;
+				}
+			}
+			if (largest == null) {
+				break;
+			}
+			boxes.add(this.split(largest));
+		}
+
+		// the boxes cover all the occupied bins, so every pixel maps to the box its bin is in
+		for (int i = 0; i < boxes.size(); i++) {
+			Box box = boxes.get(i);
+			long r = 0, g = 0, b = 0;
+			for (int br = box.r0; br <= box.r1; br++) {
+				for (int bg = box.g0; bg <= box.g1; bg++) {
+					int bin = (br << (BITS * 2)) | (bg << BITS);
+					for (int bb = box.b0; bb <= box.b1; bb++) {
+						r += this.sumR[bin | bb];
+						g += this.sumG[bin | bb];
+						b += this.sumB[bin | bb];
+						this.binIndex[bin | bb] = (byte) i;
+					}
+				}
+			}
+			long n = Math.max(1, box.count);
+			palette[i] = (int) (((r + (n / 2)) / n) << 16 | ((g + (n / 2)) / n) << 8 | ((b + (n / 2)) / n));
+		}
+
+		int i = 0;
+		for (int z = 0; z < h; z++) {
+			int p = offset + (z * scanSize);
+			for (int x = 0; x < w; x++) {
+				int pixel = pixels[p + x];
+				indices[i++] = this.binIndex[getBin((pixel >> 16) & 0xff, (pixel >> 8) & 0xff, pixel & 0xff)];
+			}
+		}
+		return boxes.size();
+	}
+}
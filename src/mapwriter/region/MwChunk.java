@@ -1,12 +1,25 @@
 package mapwriter.region;
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class MwChunk {
 	public static final int SIZE = 16;
 	
+	// the only parts of the chunk NBT that are needed for rendering,
+	// everything else (entities, tile entities, lighting...) is skipped
+	// without being parsed.
+	private static final NbtReader.Filter READ_FILTER = NbtReader.Filter.of(
+			"Level/xPos",
+			"Level/zPos",
+			"Level/Biomes",
+			"Level/Sections/Y",
+			"Level/Sections/Blocks",
+			"Level/Sections/Add",
+			"Level/Sections/Data");
+	
 	public final int x;
 	public final int z;
 	public final int dimension;
@@ -19,6 +32,19 @@ public class MwChunk {
 	
 	public final int maxHeight;
 	
+	// the y of the highest non-air block in each column, indexed by (z << 4) | x,
+	// or -1 if the column is empty.
+	private final int[] columnTops;
+	
+	// per section summaries of the block colours, computed when first needed.
+	// each entry is SUMMARY_UNKNOWN, SUMMARY_YES or SUMMARY_NO.
+	private static final byte SUMMARY_UNKNOWN = 0;
+	private static final byte SUMMARY_YES = 1;
+	private static final byte SUMMARY_NO = 2;
+	private BlockColours summaryColours = null;
+	private final byte[] transparentSections = new byte[16];
+	private final byte[] opaqueSections = new byte[16];
+	
 	public MwChunk(int x, int z, int dimension, byte[][] msbArray, byte[][] lsbArray, byte[][] metaArray, byte[] biomeArray) {
 		this.x = x;
 		this.z = z;
@@ -34,6 +60,45 @@ public class MwChunk {
 			}
 		}
 		this.maxHeight = maxY << 4;
+		this.columnTops = this.findColumnTops();
+	}
+	
+	// scan down through the raw block arrays of the sections, from the top, until
+	// every column has found its highest non-air block. this touches the block
+	// arrays directly, so it is a lot cheaper than scanning every column down
+	// from maxHeight with getBlockAndMetadata.
+	private int[] findColumnTops() {
+		int[] tops = new int[SIZE * SIZE];
+		Arrays.fill(tops, -1);
+		int remaining = tops.length;
+		
+		for (int yi = (this.maxHeight >> 4) - 1; (yi >= 0) && (remaining > 0); yi--) {
+			byte[] lsb = (this.lsbArray != null) ? this.lsbArray[yi] : null;
+			byte[] msb = (this.msbArray != null) ? this.msbArray[yi] : null;
+			if (lsb == null) {
+				continue;
+			}
+			for (int y = 15; (y >= 0) && (remaining > 0); y--) {
+				int base = y << 8;
+				for (int i = 0; i < tops.length; i++) {
+					if (tops[i] < 0) {
+						int offset = base | i;
+						boolean hasBlock = (lsb[offset] != 0) ||
+								((msb != null) && (((msb[offset >> 1] >> ((offset & 1) << 2)) & 0xf) != 0));
+						if (hasBlock) {
+							tops[i] = (yi << 4) | y;
+							remaining--;
+						}
+					}
+				}
+			}
+		}
+		return tops;
+	}
+	
+	// get the y of the highest non-air block in a column, -1 if the column is empty.
+	public int getColumnTop(int x, int z) {
+		return this.columnTops[((z & 0xf) << 4) | (x & 0xf)];
 	}
 	
 	public String toString() {
@@ -42,13 +107,9 @@ public class MwChunk {
 	
 	// load from anvil file
 	public static MwChunk read(int x, int z, int dimension, RegionFile regionFile) {
+		long startTime = RenderMetrics.start();
 		
-		byte[] biomeArray = null;
-		byte[][] msbArray = new byte[16][];
-		byte[][] lsbArray = new byte[16][];
-		byte[][] metaArray = new byte[16][];
-		
-        DataInputStream dis = null;
+        DataInput in = null;
         if (!regionFile.isOpen()) {
         	if (regionFile.exists()) {
         		regionFile.open();
@@ -56,10 +117,39 @@ public class MwChunk {
         }
 		
         if (regionFile.isOpen()) {
-        	dis = regionFile.getChunkDataInputStream(x & 31, z & 31);
+        	in = regionFile.getChunkDataInput(x & 31, z & 31);
         }
         
-		if (dis != null) {
+		MwChunk chunk = readFromInput(x, z, dimension, in);
+		RenderMetrics.stop(RenderMetrics.Stage.CHUNK_READ, startTime);
+		return chunk;
+	}
+	
+	// load from the compressed chunk data of an anvil file, as returned by
+	// RegionFile.getCompressedChunkData. null data gives an empty chunk.
+	public static MwChunk read(int x, int z, int dimension, byte[] compressedData) {
+		long startTime = RenderMetrics.start();
+		DataInput in = null;
+		if (compressedData != null) {
+			try {
+				in = ChunkInflater.get().inflate(compressedData, 0, compressedData.length);
+			} catch (IOException e) {
+				RegionManager.logError("%s: could not inflate chunk (%d, %d)\n", e, x, z);
+			}
+		}
+		MwChunk chunk = readFromInput(x, z, dimension, in);
+		RenderMetrics.stop(RenderMetrics.Stage.CHUNK_READ, startTime);
+		return chunk;
+	}
+	
+	// read the chunk NBT from the inflated chunk data, null gives an empty chunk.
+	private static MwChunk readFromInput(int x, int z, int dimension, DataInput in) {
+		byte[] biomeArray = null;
+		byte[][] msbArray = new byte[16][];
+		byte[][] lsbArray = new byte[16][];
+		byte[][] metaArray = new byte[16][];
+		
+		if (in != null) {
 			try {
 				
 				//chunk NBT structure:
@@ -86,7 +176,7 @@ public class MwChunk {
 				//END
 				//END
 				
-				Nbt root = Nbt.readNextElement(dis);
+				Nbt root = NbtReader.readNextElement(in, READ_FILTER);
 				Nbt level = root.getChild("Level");
 				
 				int xNbt = level.getChild("xPos").getInt();
@@ -111,11 +201,6 @@ public class MwChunk {
 				
 			} catch (IOException e) {
 				RegionManager.logError("%s: could not read chunk (%d, %d) from region file\n", e, x, z);
-			} finally {
-				try { dis.close(); }
-				catch (IOException e) {
-					RegionManager.logError("MwChunk.read: %s while closing input stream", e);
-				}
 			}
 			//this.log("MwChunk.read: chunk (%d, %d) empty=%b", this.x, this.z, empty);
 		} else {
@@ -125,6 +210,60 @@ public class MwChunk {
 		return new MwChunk(x, z, dimension, msbArray, lsbArray, metaArray, biomeArray);
 	}
 	
+	// true if every block in the section is fully transparent (alpha 0)
+	// with the given block colours, e.g. a section full of air.
+	public boolean isSectionTransparent(BlockColours bc, int yi) {
+		this.checkSummaryColours(bc);
+		if (this.transparentSections[yi & 0xf] == SUMMARY_UNKNOWN) {
+			this.transparentSections[yi & 0xf] = this.allBlocksHaveAlpha(bc, yi & 0xf, 0x00) ? SUMMARY_YES : SUMMARY_NO;
+		}
+		return this.transparentSections[yi & 0xf] == SUMMARY_YES;
+	}
+	
+	// true if every block in the section is fully opaque (alpha 0xff)
+	// with the given block colours, e.g. a section of solid netherrack.
+	public boolean isSectionOpaque(BlockColours bc, int yi) {
+		this.checkSummaryColours(bc);
+		if (this.opaqueSections[yi & 0xf] == SUMMARY_UNKNOWN) {
+			this.opaqueSections[yi & 0xf] = this.allBlocksHaveAlpha(bc, yi & 0xf, 0xff) ? SUMMARY_YES : SUMMARY_NO;
+		}
+		return this.opaqueSections[yi & 0xf] == SUMMARY_YES;
+	}
+	
+	private void checkSummaryColours(BlockColours bc) {
+		// the summaries are only valid for the block colours they were made with
+		if (this.summaryColours != bc) {
+			this.summaryColours = bc;
+			Arrays.fill(this.transparentSections, SUMMARY_UNKNOWN);
+			Arrays.fill(this.opaqueSections, SUMMARY_UNKNOWN);
+		}
+	}
+	
+	// check the block arrays of a section directly, stopping at the first
+	// block with a different alpha. so this is only expensive for the
+	// uniform sections that can then be skipped as a whole.
+	private boolean allBlocksHaveAlpha(BlockColours bc, int yi, int alpha) {
+		byte[] lsb  = (this.lsbArray  != null) ? this.lsbArray[yi]  : null;
+		byte[] msb  = (this.msbArray  != null) ? this.msbArray[yi]  : null;
+		byte[] meta = (this.metaArray != null) ? this.metaArray[yi] : null;
+		
+		if ((lsb == null) && (msb == null) && (meta == null)) {
+			return ((bc.getColour(0) >> 24) & 0xff) == alpha;
+		}
+		
+		for (int offset = 0; offset < 4096; offset++) {
+			int shift = (offset & 1) << 2;
+			int blockAndMeta =
+					(((msb  != null) ? (msb[offset >> 1]  >> shift) & 0xf : 0) << 12) |
+					(((lsb  != null) ?  lsb[offset]             & 0xff : 0) << 4) |
+					 ((meta != null) ? (meta[offset >> 1] >> shift) & 0xf : 0);
+			if (((bc.getColour(blockAndMeta) >> 24) & 0xff) != alpha) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	public boolean isEmpty() {
 		return (this.maxHeight <= 0);
 	}
@@ -150,13 +289,15 @@ public class MwChunk {
 		Nbt sections = new Nbt(Nbt.TAG_LIST, "Sections", null);
 		
 		for (int y = 0; y < 16; y++) {
+			// like the game, leave out the sections without blocks
+			if ((this.lsbArray == null) || (this.lsbArray[y] == null)) {
+				continue;
+			}
+			
 			Nbt section = new Nbt(Nbt.TAG_COMPOUND, "", null);
 			
 			section.addChild(new Nbt(Nbt.TAG_BYTE, "Y", (byte) y));
-			
-			if ((this.lsbArray != null) && (this.lsbArray[y] != null)) {
-				section.addChild(new Nbt(Nbt.TAG_BYTE_ARRAY, "Blocks", this.lsbArray[y]));
-			}
+			section.addChild(new Nbt(Nbt.TAG_BYTE_ARRAY, "Blocks", this.lsbArray[y]));
 			if ((this.msbArray != null) && (this.msbArray[y] != null)) {
 				section.addChild(new Nbt(Nbt.TAG_BYTE_ARRAY, "Add", this.msbArray[y]));
 			}
@@ -184,9 +325,11 @@ public class MwChunk {
 	
 	public synchronized boolean write(RegionFile regionFile) {
 		boolean error = false;
-		if (!regionFile.isOpen()) {
-        	error = regionFile.open();
-        }
+		if (!regionFile.isWritable()) {
+			// reopen a file that was opened for reading
+			regionFile.close();
+			error = regionFile.open(true);
+		}
 		if (!error) {
 			DataOutputStream dos = regionFile.getChunkDataOutputStream(this.x & 31, this.z & 31);
 			if (dos != null) {
@@ -1,14 +1,21 @@
 package mapwriter.region;
 
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/*
+	Scalar values are stored unboxed in 'value' (floats and doubles as their raw
+	bits), arrays and strings in 'data'. The children of lists and compounds are
+	kept in an array, compounds also keep the child names in a parallel array and
+	look them up linearly. Only large compounds get a hash map index.
+	Tag names read from NBT data are interned.
+*/
 public class Nbt {
 
 	// each NBT element has the structure:
@@ -37,39 +44,132 @@ public class Nbt {
 	
 	public static Nbt nullElement = new Nbt(TAG_NULL, "", null);
 	
+	// compounds with more children than this get a hash map index
+	private static final int COMPOUND_INDEX_THRESHOLD = 16;
+	// limit on the number of interned names, in case of unusual data
+	private static final int MAX_INTERNED_NAMES = 8192;
+	private static final Map<String, String> internedNames = new ConcurrentHashMap<String, String>();
+	
 	public byte tagID;
 	public String name;
+	private long value;
 	private Object data;
+	private Nbt[] children;
+	private String[] childNames;
+	private int childCount;
+	// the position of each child in 'children', by name
+	private Map<String, Integer> childIndex;
 	
 	public Nbt(byte tagID, String name, Object data) {
 		this.tagID = tagID;
 		this.name = name;
-		this.data = data;
+		switch (tagID) {
+			case TAG_BYTE:
+			case TAG_SHORT:
+			case TAG_INT:
+			case TAG_LONG:
+				this.value = (data != null) ? ((Number) data).longValue() : 0;
+				break;
+			case TAG_FLOAT:
+				this.value = (data != null) ? Float.floatToRawIntBits(((Number) data).floatValue()) : 0;
+				break;
+			case TAG_DOUBLE:
+				this.value = (data != null) ? Double.doubleToRawLongBits(((Number) data).doubleValue()) : 0;
+				break;
+			default:
+				this.data = data;
+				break;
+		}
+	}
+	
+	// create a scalar element without boxing the value. floats and doubles
+	// are passed as their raw bits.
+	static Nbt newScalar(byte tagID, String name, long value) {
+		Nbt elem = new Nbt(tagID, name, null);
+		elem.value = value;
+		return elem;
+	}
+	
+	// returns a shared instance of the name, so that the names of the many
+	// elements with the same name don't each take up memory.
+	public static String internName(String name) {
+		String interned = internedNames.get(name);
+		if (interned == null) {
+			if (internedNames.size() >= MAX_INTERNED_NAMES) {
+				return name;
+			}
+			interned = internedNames.putIfAbsent(name, name);
+			if (interned == null) {
+				interned = name;
+			}
+		}
+		return interned;
 	}
 	
 	public boolean isNull() {
 		return (this.tagID == TAG_NULL);
 	}
 	
+	private void ensureChildCapacity(int capacity) {
+		if (this.children == null) {
+			this.children = new Nbt[Math.max(capacity, 4)];
+			if (this.tagID == TAG_COMPOUND) {
+				this.childNames = new String[this.children.length];
+			}
+		} else if (capacity > this.children.length) {
+			int newLength = Math.max(capacity, this.children.length * 2);
+			this.children = Arrays.copyOf(this.children, newLength);
+			if (this.childNames != null) {
+				this.childNames = Arrays.copyOf(this.childNames, newLength);
+			}
+		}
+	}
+	
+	private int getChildIndex(String name) {
+		if (this.childIndex != null) {
+			Integer index = this.childIndex.get(name);
+			return (index != null) ? index.intValue() : -1;
+		}
+		// names are mostly interned, so try the reference comparison first
+		for (int i = 0; i < this.childCount; i++) {
+			if (this.childNames[i] == name) {
+				return i;
+			}
+		}
+		for (int i = 0; i < this.childCount; i++) {
+			if (this.childNames[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
 	public void addChild(Nbt child) {
 		// for list structures
 		if (this.tagID == TAG_LIST) {
-			if (this.data == null) {
-				this.data = new ArrayList<Nbt>();
-			}
-			@SuppressWarnings("unchecked")
-			List<Nbt> childrenList = (List<Nbt>) this.data;
-			childrenList.add(child);
+			this.ensureChildCapacity(this.childCount + 1);
+			this.children[this.childCount++] = child;
 		}
 		
 		// for compound structures
 		if (this.tagID == TAG_COMPOUND) {
-			if (this.data == null) {
-				this.data = new HashMap<String, Nbt>();
+			// a child with the same name replaces the existing child
+			int index = (this.childCount > 0) ? this.getChildIndex(child.name) : -1;
+			if (index < 0) {
+				this.ensureChildCapacity(this.childCount + 1);
+				index = this.childCount++;
+			}
+			this.children[index] = child;
+			this.childNames[index] = child.name;
+			
+			if (this.childIndex != null) {
+				this.childIndex.put(child.name, index);
+			} else if (this.childCount > COMPOUND_INDEX_THRESHOLD) {
+				this.childIndex = new HashMap<String, Integer>(this.childCount * 2);
+				for (int i = 0; i < this.childCount; i++) {
+					this.childIndex.put(this.childNames[i], i);
+				}
 			}
-			@SuppressWarnings("unchecked")
-			Map<String, Nbt> childrenMap = (Map<String, Nbt>) this.data;
-			childrenMap.put(child.name, child);
 		}
 	}
 	
@@ -79,12 +179,8 @@ public class Nbt {
 	// for lists, get the child element at index 'index'
 	public Nbt getChild(int index) {
 		Nbt child = null;
-		if ((this.tagID == TAG_LIST) && (this.data != null)) {
-			@SuppressWarnings("unchecked")
-			List<Nbt> childrenList = (List<Nbt>) this.data;
-			if ((index >= 0) && (index < childrenList.size())) {
-				child = childrenList.get(index);
-			}
+		if ((this.tagID == TAG_LIST) && (index >= 0) && (index < this.childCount)) {
+			child = this.children[index];
 		}
 		return (child != null) ? (child) : (nullElement);
 	}
@@ -92,23 +188,16 @@ public class Nbt {
 	// for compound tags, returns the child with name 'name'
 	public Nbt getChild(String name) {
 		Nbt child = null;
-		if ((this.tagID == TAG_COMPOUND) && (this.data != null)) {
-			@SuppressWarnings("unchecked")
-			Map<String, Nbt> childrenMap = (Map<String, Nbt>) this.data;
-			child = childrenMap.get(name);
+		if ((this.tagID == TAG_COMPOUND) && (this.childCount > 0)) {
+			int index = this.getChildIndex(name);
+			child = (index >= 0) ? this.children[index] : null;
 		}
 		return (child != null) ? (child) : (nullElement);
 	}
 	
 	// for lists, get number of children
 	public int size() {
-		int size = 0;
-		if ((this.tagID == TAG_LIST) && (this.data != null)) {
-			@SuppressWarnings("unchecked")
-			List<Nbt> childrenList = (List<Nbt>) this.data;
-			size = childrenList.size();
-		}
-		return size;
+		return (this.tagID == TAG_LIST) ? this.childCount : 0;
 	}
 	
 	/*public static String readString(DataInputStream dis) throws IOException {
@@ -138,7 +227,7 @@ public class Nbt {
 		}
 	}*/
 	
-	public static Nbt readNextElement(DataInputStream dis) throws IOException {
+	public static Nbt readNextElement(DataInput dis) throws IOException {
 		byte tagID;
 		String name = "";
 		
@@ -146,36 +235,36 @@ public class Nbt {
 		tagID = (byte) dis.readByte();
 		if (tagID != TAG_END) {
 			// END tags do not have a name
-			name = dis.readUTF();
+			name = internName(dis.readUTF());
 		}
 		
 		return readElementData(dis, tagID, name);
 	}
 	
 	// parse the next nbt tag in the data buffer
-	public static Nbt readElementData(DataInputStream dis, byte tagID, String name) throws IOException{
+	public static Nbt readElementData(DataInput dis, byte tagID, String name) throws IOException{
 		Nbt elem = null;
 		switch (tagID) {
 			case TAG_END:
 				//System.out.format("encountered end tag at %d\n", buffer.position());
 				break;
 			case TAG_BYTE:
-				elem = new Nbt(tagID, name, new Byte(dis.readByte()));
+				elem = newScalar(tagID, name, dis.readByte());
 				break;
 			case TAG_SHORT:
-				elem = new Nbt(tagID, name, new Short(dis.readShort()));
+				elem = newScalar(tagID, name, dis.readShort());
 				break;
 			case TAG_INT:
-				elem = new Nbt(tagID, name, new Integer(dis.readInt()));
+				elem = newScalar(tagID, name, dis.readInt());
 				break;
 			case TAG_FLOAT:
-				elem = new Nbt(tagID, name, new Float(dis.readFloat()));
+				elem = newScalar(tagID, name, dis.readInt());
 				break;
 			case TAG_LONG:
-				elem = new Nbt(tagID, name, new Long(dis.readLong()));
+				elem = newScalar(tagID, name, dis.readLong());
 				break;
 			case TAG_DOUBLE:
-				elem = new Nbt(tagID, name, new Double(dis.readDouble()));
+				elem = newScalar(tagID, name, dis.readLong());
 				break;
 				
 			case TAG_BYTE_ARRAY:
@@ -209,6 +298,10 @@ public class Nbt {
 				int listLength = dis.readInt();
 				elem = new Nbt(tagID, name, null);
 				//System.out.format("encountered list tag at %d, childType %d, length %d\n", buffer.position(), childType, listLength);
+				if (listLength > 0) {
+					// don't trust the length too much when allocating
+					elem.ensureChildCapacity(Math.min(listLength, 4096));
+				}
 				for (int i = 0; i < listLength; i++) {
 					Nbt child = readElementData(dis, childType, "");
 					elem.addChild(child);
@@ -237,27 +330,27 @@ public class Nbt {
 	}
 	
 	public byte getByte() {
-		return ((this.tagID == TAG_BYTE) && (this.data != null)) ? ((Byte) this.data) : ((byte) 0);
+		return (this.tagID == TAG_BYTE) ? ((byte) this.value) : ((byte) 0);
 	}
 	
 	public short getShort() {
-		return ((this.tagID == TAG_SHORT) && (this.data != null)) ? ((Short) this.data) : ((short) 0);
+		return (this.tagID == TAG_SHORT) ? ((short) this.value) : ((short) 0);
 	}
 	
 	public int getInt() {
-		return ((this.tagID == TAG_INT) && (this.data != null)) ? ((Integer) this.data) : ((int) 0);
+		return (this.tagID == TAG_INT) ? ((int) this.value) : 0;
 	}
 	
 	public long getLong() {
-		return ((this.tagID == TAG_LONG) && (this.data != null)) ? ((Long) this.data) : ((long) 0);
+		return (this.tagID == TAG_LONG) ? this.value : ((long) 0);
 	}
 	
 	public float getFloat() {
-		return ((this.tagID == TAG_FLOAT) && (this.data != null)) ? ((Float) this.data) : ((float) 0);
+		return (this.tagID == TAG_FLOAT) ? Float.intBitsToFloat((int) this.value) : ((float) 0);
 	}
 	
 	public double getDouble() {
-		return ((this.tagID == TAG_DOUBLE) && (this.data != null)) ? ((Double) this.data) : ((double) 0);
+		return (this.tagID == TAG_DOUBLE) ? Double.longBitsToDouble(this.value) : ((double) 0);
 	}
 	
 	public byte[] getByteArray() {
@@ -346,11 +439,9 @@ public class Nbt {
 			break;
 			
 		case TAG_COMPOUND:
-			@SuppressWarnings("unchecked")
-			Map<String, Nbt> childrenMap = (Map<String, Nbt>) this.data;
-			for (Nbt child : childrenMap.values()) {
-				if (child != null) {
-					child.writeElement(dos);
+			for (int i = 0; i < this.childCount; i++) {
+				if (this.children[i] != null) {
+					this.children[i].writeElement(dos);
 				}
 			}
 			dos.writeByte(TAG_END);
@@ -0,0 +1,197 @@
+package mapwriter.region;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+	Streaming NBT decoding.
+
+	NbtReader can skip over whole elements using the lengths stored in the
+	data, without building any Nbt objects for them, and can build a partial
+	Nbt tree that only contains the elements matching a set of paths.
+
+	e.g. only read the block data from a chunk:
+
+		NbtReader.Filter filter = NbtReader.Filter.of("Level/Sections/Y", "Level/Sections/Blocks");
+		Nbt root = NbtReader.readNextElement(dis, filter);
+*/
+public class NbtReader {
+
+	// A tree of tag names. List elements do not have names, so a filter
+	// applies to all the elements of a list. A filter node without any
+	// children accepts the whole subtree under it.
+	public static class Filter {
+		private final Map<String, Filter> children = new HashMap<String, Filter>();
+
+		// build a filter from paths of tag names separated by '/'
+		public static Filter of(String... paths) {
+			Filter root = new Filter();
+			for (String path : paths) {
+				Filter filter = root;
+				for (String name : path.split("/")) {
+					Filter child = filter.children.get(name);
+					if (child == null) {
+						child = new Filter();
+						filter.children.put(name, child);
+					}
+					filter = child;
+				}
+			}
+			return root;
+		}
+
+		public boolean acceptsAll() {
+			return this.children.isEmpty();
+		}
+
+		// returns the filter for the child element 'name', or null if
+		// the child element is not wanted
+		public Filter getChild(String name) {
+			return this.acceptsAll() ? this : this.children.get(name);
+		}
+	}
+
+	// read the next fully formed tag, only keeping the child elements
+	// accepted by the filter.
+	public static Nbt readNextElement(DataInput dis, Filter filter) throws IOException {
+		byte tagID = dis.readByte();
+		String name = "";
+		if (tagID != Nbt.TAG_END) {
+			// END tags do not have a name
+			name = Nbt.internName(dis.readUTF());
+		}
+		return readElementData(dis, tagID, name, filter);
+	}
+
+	public static Nbt readElementData(DataInput dis, byte tagID, String name, Filter filter) throws IOException {
+		Nbt elem;
+		switch (tagID) {
+			case Nbt.TAG_LIST:
+				if (filter.acceptsAll()) {
+					elem = Nbt.readElementData(dis, tagID, name);
+				} else {
+					byte childType = dis.readByte();
+					int listLength = dis.readInt();
+					elem = new Nbt(tagID, name, null);
+					for (int i = 0; i < listLength; i++) {
+						elem.addChild(readElementData(dis, childType, "", filter));
+					}
+				}
+				break;
+
+			case Nbt.TAG_COMPOUND:
+				if (filter.acceptsAll()) {
+					elem = Nbt.readElementData(dis, tagID, name);
+				} else {
+					elem = new Nbt(tagID, name, null);
+					byte childTagID;
+					while ((childTagID = dis.readByte()) != Nbt.TAG_END) {
+						String childName = Nbt.internName(dis.readUTF());
+						Filter childFilter = filter.getChild(childName);
+						if (childFilter != null) {
+							elem.addChild(readElementData(dis, childTagID, childName, childFilter));
+						} else {
+							skipElementData(dis, childTagID);
+						}
+					}
+				}
+				break;
+
+			default:
+				elem = Nbt.readElementData(dis, tagID, name);
+				break;
+		}
+		return elem;
+	}
+
+	// skip the next fully formed tag, including its name.
+	public static void skipNextElement(DataInput dis) throws IOException {
+		byte tagID = dis.readByte();
+		if (tagID != Nbt.TAG_END) {
+			skipString(dis);
+			skipElementData(dis, tagID);
+		}
+	}
+
+	private static void skipString(DataInput dis) throws IOException {
+		skipFully(dis, dis.readUnsignedShort());
+	}
+
+	private static void skipFully(DataInput dis, long n) throws IOException {
+		while (n > 0) {
+			int skipped = dis.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				// skipBytes may stop early without reaching the end of the data,
+				// make sure that there is at least one byte left
+				dis.readByte();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	// the size of each element of the given tag type in a list, or -1 if the
+	// elements don't have a fixed size.
+	private static int getFixedSize(byte tagID) {
+		switch (tagID) {
+			case Nbt.TAG_END:    return 0;
+			case Nbt.TAG_BYTE:   return 1;
+			case Nbt.TAG_SHORT:  return 2;
+			case Nbt.TAG_INT:    return 4;
+			case Nbt.TAG_LONG:   return 8;
+			case Nbt.TAG_FLOAT:  return 4;
+			case Nbt.TAG_DOUBLE: return 8;
+			default:             return -1;
+		}
+	}
+
+	// skip the data of an element, using the lengths stored in the data
+	// rather than reading and discarding each value.
+	public static void skipElementData(DataInput dis, byte tagID) throws IOException {
+		int fixedSize = getFixedSize(tagID);
+		if (fixedSize >= 0) {
+			skipFully(dis, fixedSize);
+			return;
+		}
+
+		switch (tagID) {
+			case Nbt.TAG_BYTE_ARRAY:
+				skipFully(dis, Math.max(0, dis.readInt()));
+				break;
+
+			case Nbt.TAG_INT_ARRAY:
+				skipFully(dis, 4L * Math.max(0, dis.readInt()));
+				break;
+
+			case Nbt.TAG_STRING:
+				skipString(dis);
+				break;
+
+			case Nbt.TAG_LIST:
+				byte childType = dis.readByte();
+				int listLength = dis.readInt();
+				int childSize = getFixedSize(childType);
+				if (childSize >= 0) {
+					skipFully(dis, (long) childSize * Math.max(0, listLength));
+				} else {
+					for (int i = 0; i < listLength; i++) {
+						skipElementData(dis, childType);
+					}
+				}
+				break;
+
+			case Nbt.TAG_COMPOUND:
+				byte childTagID;
+				while ((childTagID = dis.readByte()) != Nbt.TAG_END) {
+					skipString(dis);
+					skipElementData(dis, childTagID);
+				}
+				break;
+
+			default:
+				throw new IOException(String.format("unknown tag id %d", tagID));
+		}
+	}
+}
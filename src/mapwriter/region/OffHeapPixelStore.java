@@ -0,0 +1,133 @@
+package mapwriter.region;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+	Keeps the pixels of modified regions that were evicted from the region
+	cache outside of the Java heap, in direct buffers.
+
+	Without it, an evicted zoom level image that is not finished yet has to
+	be written as a PNG, and decoded again when the next region below it is
+	rendered. With it, the image is only copied out of and back into the
+	heap, and written once, when it is finished (writeRegion) or when the
+	region manager is closed (writeAll).
+
+	The store is limited to maxBytes of direct memory. The buffers are kept
+	and reused, as direct memory is only freed by the garbage collector.
+*/
+public class OffHeapPixelStore {
+
+	private static class Entry {
+		final IntBuffer buffer;
+		final File imageFile;
+		final int zoomLevel;
+
+		Entry(IntBuffer buffer, File imageFile, int zoomLevel) {
+			this.buffer = buffer;
+			this.imageFile = imageFile;
+			this.zoomLevel = zoomLevel;
+		}
+	}
+
+	private final int bufferSize;
+	private final int maxBuffers;
+	private int allocatedBuffers = 0;
+	private final ArrayDeque<IntBuffer> freeBuffers = new ArrayDeque<IntBuffer>();
+	private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+	private long storedCount = 0;
+	private long restoredCount = 0;
+
+	public OffHeapPixelStore(int bufferSize, long maxBytes) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = (int) Math.min(Integer.MAX_VALUE, maxBytes / (bufferSize * 4L));
+	}
+
+	// returns false if the store is full
+	public synchronized boolean put(long key, File imageFile, int zoomLevel, int[] pixels) {
+		IntBuffer buffer = this.freeBuffers.pollLast();
+		if (buffer == null) {
+			if (this.allocatedBuffers >= this.maxBuffers) {
+				return false;
+			}
+			buffer = ByteBuffer.allocateDirect(this.bufferSize * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+			this.allocatedBuffers++;
+		}
+		buffer.clear();
+		buffer.put(pixels, 0, this.bufferSize);
+		Entry old = this.entries.put(key, new Entry(buffer, imageFile, zoomLevel));
+		if (old != null) {
+			this.freeBuffers.addLast(old.buffer);
+		}
+		this.storedCount++;
+		return true;
+	}
+
+	// copies the stored pixels to the array and removes them from the store.
+	// returns false if there are no pixels stored for the key.
+	public synchronized boolean take(long key, int[] pixels) {
+		Entry entry = this.entries.remove(key);
+		if (entry == null) {
+			return false;
+		}
+		entry.buffer.clear();
+		entry.buffer.get(pixels, 0, this.bufferSize);
+		this.freeBuffers.addLast(entry.buffer);
+		this.restoredCount++;
+		return true;
+	}
+
+	public synchronized boolean contains(long key) {
+		return this.entries.containsKey(key);
+	}
+
+	// writes the image of the stored region and removes it from the store.
+	// the buffer is a temporary pixel array of bufferSize pixels.
+	public void writeRegion(long key, int[] buffer) {
+		File imageFile;
+		int zoomLevel;
+		synchronized (this) {
+			Entry entry = this.entries.get(key);
+			if (entry == null) {
+				return;
+			}
+			imageFile = entry.imageFile;
+			zoomLevel = entry.zoomLevel;
+			this.take(key, buffer);
+		}
+
+		File dir = imageFile.getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		try {
+			PngCodec.write(buffer, Region.SIZE, Region.SIZE, imageFile, zoomLevel);
+		} catch (IOException e) {
+			RegionManager.logError("OffHeapPixelStore.writeRegion: error: could not write image to %s", imageFile.getName());
+		}
+	}
+
+	public void writeAll(int[] buffer) {
+		List<Long> keys;
+		synchronized (this) {
+			keys = new ArrayList<Long>(this.entries.keySet());
+		}
+		for (long key : keys) {
+			this.writeRegion(key, buffer);
+		}
+	}
+
+	public synchronized void logStats() {
+		RegionManager.logInfo("off heap pixel store: %d stored, %d restored, %d MB allocated",
+				this.storedCount, this.restoredCount, ((long) this.allocatedBuffers * this.bufferSize * 4) >> 20);
+	}
+}
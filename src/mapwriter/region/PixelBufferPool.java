@@ -0,0 +1,58 @@
+package mapwriter.region;
+
+import java.util.ArrayDeque;
+
+/*
+	A pool of the 1 MB pixel arrays of the regions.
+
+	The regions return their pixel array when they are closed, and take the
+	next one from the pool instead of allocating a new array. Arrays this
+	large are allocated directly in the old generation (as humongous objects
+	with G1), so dropping them to the garbage collector after every region
+	causes long collection pauses.
+
+	At most maxBuffers unused arrays are kept, the others are left to the
+	garbage collector. An array must not be used after it has been released.
+*/
+public class PixelBufferPool {
+
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final ArrayDeque<int[]> buffers = new ArrayDeque<int[]>();
+
+	private long allocatedCount = 0;
+	private long reusedCount = 0;
+
+	public PixelBufferPool(int bufferSize, int maxBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+	}
+
+	// the contents of the returned array are undefined
+	public int[] acquire() {
+		synchronized (this) {
+			int[] buffer = this.buffers.pollLast();
+			if (buffer != null) {
+				this.reusedCount++;
+				return buffer;
+			}
+			this.allocatedCount++;
+		}
+		return new int[this.bufferSize];
+	}
+
+	public synchronized void release(int[] buffer) {
+		if ((buffer.length == this.bufferSize) && (this.buffers.size() < this.maxBuffers)) {
+			this.buffers.addLast(buffer);
+		}
+	}
+
+	public synchronized void clear() {
+		this.buffers.clear();
+	}
+
+	public synchronized void logStats() {
+		RegionManager.logInfo("pixel buffers: %d allocated, %d reused, %d pooled",
+				this.allocatedCount, this.reusedCount, this.buffers.size());
+	}
+}
@@ -0,0 +1,635 @@
+package mapwriter.region;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+	PNG encoding and decoding straight from and to int[] pixel arrays, without
+	going through BufferedImage and ImageIO.
+
+	The encoder writes 8 bit RGB images (the alpha channel of the pixels is
+	ignored) using a Deflater and buffers that are reused by each thread.
+	The filter and compression level can be set for each zoom level.
+
+	With the indexed setting each image is reduced to its own palette of at
+	most 256 colours by a ColourQuantizer and written as an 8 bit palette image.
+
+	The decoder only handles the non-interlaced 8 bit RGB, RGBA and palette
+	images that the encoder (or ImageIO) writes. read returns false for any other image, so
+	the caller can fall back to ImageIO.
+*/
+public class PngCodec {
+
+	public enum Filter {
+		NONE("none", 0),
+		SUB("sub", 1),
+		UP("up", 2),
+		AVERAGE("average", 3),
+		PAETH("paeth", 4),
+		// pick the filter with the smallest sum of absolute differences for
+		// each row, like the ImageIO PNG writer does
+		ADAPTIVE("adaptive", -1);
+
+		public final String name;
+		public final int type;
+
+		Filter(String name, int type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		public static Filter fromName(String name) {
+			for (Filter filter : Filter.values()) {
+				if (filter.name.equalsIgnoreCase(name)) {
+					return filter;
+				}
+			}
+			return null;
+		}
+	}
+
+	public static class Settings {
+		public final Filter filter;
+		public final int level;
+		// write 8 bit palette images, quantizing tiles with more than 256 colours
+		public final boolean indexed;
+
+		public Settings(Filter filter, int level) {
+			this(filter, level, false);
+		}
+
+		public Settings(Filter filter, int level, boolean indexed) {
+			this.filter = filter;
+			this.level = Math.min(Math.max(0, level), 9);
+			this.indexed = indexed;
+		}
+
+		public String toString() {
+			return String.format("%s %s/%d", this.indexed ? "indexed" : "rgb", this.filter.name, this.level);
+		}
+	}
+
+	// the number of images, bytes and encode time written for one zoom level
+	public static class Stats {
+		public final AtomicLong images = new AtomicLong();
+		public final AtomicLong bytes = new AtomicLong();
+		public final AtomicLong nanos = new AtomicLong();
+		// images not written because they had not changed
+		public final AtomicLong unchanged = new AtomicLong();
+		// empty images that were not written
+		public final AtomicLong empty = new AtomicLong();
+	}
+
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	private static final int CHUNK_IHDR = 0x49484452;
+	private static final int CHUNK_IDAT = 0x49444154;
+	private static final int CHUNK_IEND = 0x49454e44;
+	private static final int CHUNK_PLTE = 0x504c5445;
+	private static final int COLOUR_TYPE_RGB = 2;
+	private static final int COLOUR_TYPE_INDEXED = 3;
+	private static final int COLOUR_TYPE_RGBA = 6;
+
+	// the settings used for zoom levels without their own settings. the map
+	// tiles have large areas of repeated pixels, which deflate compresses
+	// better without any filtering.
+	public static Settings defaultSettings = new Settings(Filter.NONE, 4);
+	private static final Map<Integer, Settings> zoomLevelSettings = new HashMap<Integer, Settings>();
+	// null if all images are written
+	public static volatile TileHashManifest tileHashManifest = null;
+	// don't write images that are entirely black
+	public static boolean skipEmptyImages = true;
+	private static final int MAX_UNIFORM_IMAGES = 1024;
+	private static final Map<Long, byte[]> uniformImages = new ConcurrentHashMap<Long, byte[]>();
+	private static final Map<Integer, Stats> zoomLevelStats = new ConcurrentHashMap<Integer, Stats>();
+
+	public static synchronized void setSettings(int zoomLevel, Settings settings) {
+		zoomLevelSettings.put(zoomLevel, settings);
+	}
+
+	public static synchronized Settings getSettings(int zoomLevel) {
+		Settings settings = zoomLevelSettings.get(zoomLevel);
+		return (settings != null) ? settings : defaultSettings;
+	}
+
+	public static Stats getStats(int zoomLevel) {
+		Stats stats = zoomLevelStats.get(zoomLevel);
+		if (stats == null) {
+			zoomLevelStats.putIfAbsent(zoomLevel, new Stats());
+			stats = zoomLevelStats.get(zoomLevel);
+		}
+		return stats;
+	}
+
+	// log the image count, average size and encode time of each zoom level,
+	// to help choose the settings for each zoom level.
+	// the image stats of each zoom level, in zoom level order
+	public static Map<Integer, Stats> getStats() {
+		return new TreeMap<Integer, Stats>(zoomLevelStats);
+	}
+
+	public static void logStats() {
+		for (Integer zoomLevel : new TreeSet<Integer>(zoomLevelStats.keySet())) {
+			Stats stats = zoomLevelStats.get(zoomLevel);
+			long images = Math.max(1, stats.images.get());
+			RegionManager.logInfo("z%d: %d images (%s), %.1f KB and %.2f ms per image, %d unchanged, %d empty",
+					zoomLevel, stats.images.get(), getSettings(zoomLevel),
+					stats.bytes.get() / 1024.0 / images, stats.nanos.get() / 1.0e6 / images,
+					stats.unchanged.get(), stats.empty.get());
+		}
+	}
+
+	// per thread state, so that the large buffers and the native zlib
+	// state are only allocated once per thread.
+	private static class Buffers {
+		final Deflater deflater = new Deflater();
+		final Inflater inflater = new Inflater();
+		final CRC32 crc = new CRC32();
+		byte[] raw = new byte[0];
+		byte[] compressed = new byte[0];
+		// one scanline for each filter type, used by the adaptive filter
+		byte[][] rows = new byte[5][0];
+		ColourQuantizer quantizer = null;
+		final int[] palette = new int[ColourQuantizer.MAX_COLOURS];
+		byte[] indices = new byte[0];
+
+		byte[] getRaw(int size) {
+			if (this.raw.length < size) {
+				this.raw = new byte[size];
+			}
+			return this.raw;
+		}
+	}
+
+	private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	public static void write(int[] pixels, int w, int h, File file, Settings settings) throws IOException {
+		write(pixels, 0, w, w, h, file, settings);
+	}
+
+	// write with the settings of the zoom level, and add to its stats.
+	// if there is a tile hash manifest, images with the same pixels and
+	// settings as in the previous run are not written again.
+	// empty (all black) images are not written at all, and any old image
+	// file is deleted, so the viewer shows its shared empty tile instead.
+	// images of a single other colour are written as a tiny palette image.
+	public static void write(int[] pixels, int w, int h, File file, int zoomLevel) throws IOException {
+		Settings settings = getSettings(zoomLevel);
+		Stats stats = getStats(zoomLevel);
+		int uniformColour = getUniformColour(pixels, w, h);
+		if ((uniformColour == 0) && skipEmptyImages) {
+			stats.empty.incrementAndGet();
+			if (file.isFile()) {
+				file.delete();
+				if (tileHashManifest != null) {
+					tileHashManifest.setDeleted(file);
+				}
+			}
+			return;
+		}
+
+		TileHashManifest manifest = tileHashManifest;
+		long hash = 0;
+		if (manifest != null) {
+			hash = TileHashManifest.hashPixels(pixels, 0, w, w, h, settings.toString().hashCode());
+			if (!manifest.needsWriting(file, hash)) {
+				stats.unchanged.incrementAndGet();
+				return;
+			}
+		}
+
+		long start = System.nanoTime();
+		if (uniformColour >= 0) {
+			writeUniform(uniformColour, w, h, file);
+		} else {
+			write(pixels, 0, w, w, h, file, settings);
+		}
+		stats.nanos.addAndGet(System.nanoTime() - start);
+		stats.bytes.addAndGet(file.length());
+		stats.images.incrementAndGet();
+
+		if (manifest != null) {
+			manifest.setWritten(file, hash);
+		}
+	}
+
+	// returns the RGB colour of the image if all its pixels have the same
+	// colour, or -1 otherwise. stops at the first pixel that differs.
+	public static int getUniformColour(int[] pixels, int w, int h) {
+		int colour = pixels[0] & 0xffffff;
+		for (int i = 1; i < w * h; i++) {
+			if ((pixels[i] & 0xffffff) != colour) {
+				return -1;
+			}
+		}
+		return colour;
+	}
+
+	// write an image of a single colour. the encoded image only depends on
+	// the colour and size, so it is only encoded once.
+	public static void writeUniform(int colour, int w, int h, File file) throws IOException {
+		Long key = ((long) (colour & 0xffffff) << 32) | ((long) (w & 0xffff) << 16) | (h & 0xffff);
+		byte[] data = uniformImages.get(key);
+		if (data == null) {
+			data = encodeUniform(colour, w, h);
+			if (uniformImages.size() < MAX_UNIFORM_IMAGES) {
+				uniformImages.put(key, data);
+			}
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] encodeUniform(int colour, int w, int h) throws IOException {
+		Buffers b = buffers.get();
+		int rowSize = w + 1;
+		byte[] raw = b.getRaw(rowSize * h);
+		Arrays.fill(raw, 0, rowSize * h, (byte) 0);
+		int compressedLength = deflate(b, raw, rowSize * h, 9);
+
+		byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, w);
+		putInt(ihdr, 4, h);
+		ihdr[8] = 8;
+		ihdr[9] = COLOUR_TYPE_INDEXED;
+		byte[] plte = {(byte) (colour >> 16), (byte) (colour >> 8), (byte) colour};
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(compressedLength + 128);
+		out.write(SIGNATURE);
+		writeChunk(out, b.crc, CHUNK_IHDR, ihdr, ihdr.length);
+		writeChunk(out, b.crc, CHUNK_PLTE, plte, plte.length);
+		writeChunk(out, b.crc, CHUNK_IDAT, b.compressed, compressedLength);
+		writeChunk(out, b.crc, CHUNK_IEND, ihdr, 0);
+		return out.toByteArray();
+	}
+
+	public static void write(int[] pixels, int offset, int scanSize, int w, int h, File file, Settings settings) throws IOException {
+		Buffers b = buffers.get();
+		int rowSize;
+		int paletteSize = 0;
+		if (settings.indexed) {
+			// the rows of palette images are not filtered, as the differences
+			// between palette indices do not mean anything
+			rowSize = w + 1;
+			paletteSize = quantize(b, pixels, offset, scanSize, w, h);
+			byte[] raw = b.getRaw(rowSize * h);
+			for (int z = 0; z < h; z++) {
+				raw[z * rowSize] = 0;
+				System.arraycopy(b.indices, z * w, raw, (z * rowSize) + 1, w);
+			}
+		} else {
+			rowSize = (w * 3) + 1;
+			byte[] raw = b.getRaw(rowSize * h);
+			filterImage(b, pixels, offset, scanSize, w, h, raw, settings.filter);
+		}
+		int compressedLength = deflate(b, b.raw, rowSize * h, settings.level);
+
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] ihdr = new byte[13];
+			putInt(ihdr, 0, w);
+			putInt(ihdr, 4, h);
+			ihdr[8] = 8;                 // bit depth
+			ihdr[9] = (byte) (settings.indexed ? COLOUR_TYPE_INDEXED : COLOUR_TYPE_RGB);
+			ihdr[10] = 0;                // deflate compression
+			ihdr[11] = 0;                // adaptive filtering
+			ihdr[12] = 0;                // no interlace
+
+			out.write(SIGNATURE);
+			writeChunk(out, b.crc, CHUNK_IHDR, ihdr, ihdr.length);
+			if (settings.indexed) {
+				byte[] plte = new byte[paletteSize * 3];
+				for (int i = 0; i < paletteSize; i++) {
+					plte[i * 3]     = (byte) (b.palette[i] >> 16);
+					plte[i * 3 + 1] = (byte) (b.palette[i] >> 8);
+					plte[i * 3 + 2] = (byte) b.palette[i];
+				}
+				writeChunk(out, b.crc, CHUNK_PLTE, plte, plte.length);
+			}
+			writeChunk(out, b.crc, CHUNK_IDAT, b.compressed, compressedLength);
+			writeChunk(out, b.crc, CHUNK_IEND, ihdr, 0);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int quantize(Buffers b, int[] pixels, int offset, int scanSize, int w, int h) {
+		if (b.quantizer == null) {
+			b.quantizer = new ColourQuantizer();
+		}
+		if (b.indices.length < w * h) {
+			b.indices = new byte[w * h];
+		}
+		return b.quantizer.quantize(pixels, offset, scanSize, w, h, b.palette, b.indices);
+	}
+
+	private static void putInt(byte[] buf, int offset, int v) {
+		buf[offset]     = (byte) (v >> 24);
+		buf[offset + 1] = (byte) (v >> 16);
+		buf[offset + 2] = (byte) (v >> 8);
+		buf[offset + 3] = (byte) v;
+	}
+
+	private static void writeChunk(OutputStream out, CRC32 crc, int type, byte[] data, int length) throws IOException {
+		byte[] header = new byte[8];
+		putInt(header, 0, length);
+		putInt(header, 4, type);
+		crc.reset();
+		crc.update(header, 4, 4);
+		crc.update(data, 0, length);
+		byte[] crcBytes = new byte[4];
+		putInt(crcBytes, 0, (int) crc.getValue());
+
+		out.write(header);
+		out.write(data, 0, length);
+		out.write(crcBytes);
+	}
+
+	private static int deflate(Buffers b, byte[] raw, int length, int level) {
+		Deflater deflater = b.deflater;
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(raw, 0, length);
+		deflater.finish();
+
+		if (b.compressed.length < 1024) {
+			b.compressed = new byte[Math.max(1024, length / 4)];
+		}
+		int compressedLength = 0;
+		while (!deflater.finished()) {
+			if (compressedLength == b.compressed.length) {
+				b.compressed = Arrays.copyOf(b.compressed, b.compressed.length * 2);
+			}
+			compressedLength += deflater.deflate(b.compressed, compressedLength, b.compressed.length - compressedLength);
+		}
+		return compressedLength;
+	}
+
+	private static void filterImage(Buffers b, int[] pixels, int offset, int scanSize, int w, int h, byte[] raw, Filter filter) {
+		int bpr = w * 3;
+		if (filter == Filter.ADAPTIVE) {
+			for (int i = 0; i < 5; i++) {
+				if (b.rows[i].length < bpr) {
+					b.rows[i] = new byte[bpr];
+				}
+			}
+		}
+
+		// the unfiltered RGB bytes of the previous and current rows are
+		// kept in the two halves of 'lines'
+		byte[] lines = new byte[bpr * 2];
+		int prev = 0;
+		int cur = bpr;
+		for (int z = 0; z < h; z++) {
+			int p = offset + (z * scanSize);
+			for (int x = 0, i = cur; x < w; x++, p++) {
+				int pixel = pixels[p];
+				lines[i++] = (byte) (pixel >> 16);
+				lines[i++] = (byte) (pixel >> 8);
+				lines[i++] = (byte) pixel;
+			}
+			boolean firstRow = (z == 0);
+			int rowStart = z * (bpr + 1);
+			if (filter == Filter.ADAPTIVE) {
+				int bestType = 0;
+				long bestSum = Long.MAX_VALUE;
+				for (int type = 0; type < 5; type++) {
+					long sum = filterRow(type, lines, cur, prev, firstRow, bpr, b.rows[type], 0);
+					if (sum < bestSum) {
+						bestSum = sum;
+						bestType = type;
+					}
+				}
+				raw[rowStart] = (byte) bestType;
+				System.arraycopy(b.rows[bestType], 0, raw, rowStart + 1, bpr);
+			} else {
+				raw[rowStart] = (byte) filter.type;
+				filterRow(filter.type, lines, cur, prev, firstRow, bpr, raw, rowStart + 1);
+			}
+			int t = prev;
+			prev = cur;
+			cur = t;
+		}
+	}
+
+	// filter one row of RGB bytes, returning the sum of the absolute values of
+	// the filtered bytes (as signed bytes), which is the adaptive filter heuristic.
+	private static long filterRow(int type, byte[] lines, int cur, int prev, boolean firstRow, int bpr, byte[] dst, int dstOffset) {
+		long sum = 0;
+		for (int i = 0; i < bpr; i++) {
+			int raw = lines[cur + i] & 0xff;
+			int left = (i >= 3) ? lines[cur + i - 3] & 0xff : 0;
+			int up = firstRow ? 0 : lines[prev + i] & 0xff;
+			int upLeft = ((i >= 3) && !firstRow) ? lines[prev + i - 3] & 0xff : 0;
+			int predicted;
+			switch (type) {
+				case 1:  predicted = left; break;
+				case 2:  predicted = up; break;
+				case 3:  predicted = (left + up) >> 1; break;
+				case 4:  predicted = paeth(left, up, upLeft); break;
+				default: predicted = 0; break;
+			}
+			byte v = (byte) (raw - predicted);
+			dst[dstOffset + i] = v;
+			sum += Math.abs((int) v);
+		}
+		return sum;
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if ((pa <= pb) && (pa <= pc)) {
+			return a;
+		} else if (pb <= pc) {
+			return b;
+		}
+		return c;
+	}
+
+	// decode a PNG image of the given size into pixels (with the pixel for
+	// (x, z) at offset (z * w) + x). returns false if the image is not in a
+	// format this decoder handles, or does not have the expected size.
+	public static boolean read(File file, int[] pixels, int w, int h) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] signature = new byte[SIGNATURE.length];
+			in.readFully(signature);
+			if (!Arrays.equals(signature, SIGNATURE)) {
+				throw new IOException("not a PNG file");
+			}
+
+			Buffers b = buffers.get();
+			Inflater inflater = b.inflater;
+			inflater.reset();
+
+			int bytesPerPixel = 0;
+			int rowSize = 0;
+			int[] palette = null;
+			byte[] raw = null;
+			int rawLength = 0;
+
+			while (true) {
+				int length = in.readInt();
+				int type = in.readInt();
+				// chunk lengths are at most 2^31 - 1
+				if (length < 0) {
+					throw new IOException("invalid chunk length " + length);
+				}
+				if (type == CHUNK_IHDR) {
+					if (length != 13) {
+						throw new IOException("invalid IHDR chunk length " + length);
+					}
+					int imgW = in.readInt();
+					int imgH = in.readInt();
+					int bitDepth = in.readUnsignedByte();
+					int colourType = in.readUnsignedByte();
+					in.readUnsignedByte();
+					in.readUnsignedByte();
+					int interlace = in.readUnsignedByte();
+					if ((imgW != w) || (imgH != h) || (bitDepth != 8) || (interlace != 0) ||
+							((colourType != COLOUR_TYPE_RGB) && (colourType != COLOUR_TYPE_RGBA) && (colourType != COLOUR_TYPE_INDEXED))) {
+						return false;
+					}
+					bytesPerPixel = (colourType == COLOUR_TYPE_RGBA) ? 4 : ((colourType == COLOUR_TYPE_INDEXED) ? 1 : 3);
+					rowSize = (w * bytesPerPixel) + 1;
+					raw = b.getRaw(rowSize * h);
+					skipFully(in, 4);
+				} else if (type == CHUNK_IDAT) {
+					if (raw == null) {
+						throw new IOException("IDAT chunk before IHDR");
+					}
+					// the compressed data can not be much larger than the raw data,
+					// deflate stores incompressible data with 5 bytes per 64 KB block
+					if (length > (rowSize * h) + ((rowSize * h) >> 8) + 1024) {
+						throw new IOException("invalid IDAT chunk length " + length);
+					}
+					byte[] data = b.compressed;
+					if (data.length < length) {
+						data = new byte[length];
+						b.compressed = data;
+					}
+					in.readFully(data, 0, length);
+					skipFully(in, 4);
+					inflater.setInput(data, 0, length);
+					try {
+						while ((rawLength < rowSize * h) && !inflater.needsInput() && !inflater.finished()) {
+							rawLength += inflater.inflate(raw, rawLength, (rowSize * h) - rawLength);
+						}
+					} catch (DataFormatException e) {
+						throw new IOException("corrupt image data: " + e.getMessage());
+					}
+				} else if (type == CHUNK_PLTE) {
+					if ((length / 3) > 256) {
+						throw new IOException("invalid PLTE chunk length " + length);
+					}
+					palette = new int[256];
+					Arrays.fill(palette, 0xff000000);
+					for (int i = 0; i < length / 3; i++) {
+						palette[i] = 0xff000000 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+					}
+					skipFully(in, (length % 3) + 4);
+				} else if (type == CHUNK_IEND) {
+					break;
+				} else {
+					// skip ancillary chunks (and the CRC)
+					skipFully(in, length + 4L);
+				}
+			}
+
+			if ((raw == null) || (rawLength < rowSize * h)) {
+				throw new IOException("truncated image data");
+			}
+			if ((bytesPerPixel == 1) && (palette == null)) {
+				throw new IOException("palette image without a PLTE chunk");
+			}
+			unfilterImage(raw, rowSize, bytesPerPixel, h);
+
+			for (int z = 0; z < h; z++) {
+				int i = (z * rowSize) + 1;
+				int p = z * w;
+				if (bytesPerPixel == 1) {
+					for (int x = 0; x < w; x++, i++) {
+						pixels[p + x] = palette[raw[i] & 0xff];
+					}
+				} else if (bytesPerPixel == 3) {
+					for (int x = 0; x < w; x++, i += 3) {
+						pixels[p + x] = 0xff000000 | ((raw[i] & 0xff) << 16) | ((raw[i + 1] & 0xff) << 8) | (raw[i + 2] & 0xff);
+					}
+				} else {
+					for (int x = 0; x < w; x++, i += 4) {
+						pixels[p + x] = ((raw[i + 3] & 0xff) << 24) | ((raw[i] & 0xff) << 16) | ((raw[i + 1] & 0xff) << 8) | (raw[i + 2] & 0xff);
+					}
+				}
+			}
+			return true;
+
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void skipFully(DataInputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	private static void unfilterImage(byte[] raw, int rowSize, int bpp, int h) throws IOException {
+		int bpr = rowSize - 1;
+		for (int z = 0; z < h; z++) {
+			int row = (z * rowSize) + 1;
+			int prevRow = row - rowSize;
+			int type = raw[row - 1];
+			for (int i = 0; i < bpr; i++) {
+				int left = (i >= bpp) ? raw[row + i - bpp] & 0xff : 0;
+				int up = (z > 0) ? raw[prevRow + i] & 0xff : 0;
+				int predicted;
+				switch (type) {
+					case 0: predicted = 0; break;
+					case 1: predicted = left; break;
+					case 2: predicted = up; break;
+					case 3: predicted = (left + up) >> 1; break;
+					case 4: predicted = paeth(left, up, ((i >= bpp) && (z > 0)) ? raw[prevRow + i - bpp] & 0xff : 0); break;
+					default: throw new IOException("invalid filter type " + type);
+				}
+				raw[row + i] = (byte) (raw[row + i] + predicted);
+			}
+		}
+	}
+}
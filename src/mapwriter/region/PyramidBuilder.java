@@ -0,0 +1,100 @@
+package mapwriter.region;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+	Tracks the zoom level regions (the parents) of a set of zoom level 0
+	regions, so that each parent can be saved and unloaded as soon as the
+	last zoom level 0 region below it has been rendered.
+
+	All the zoom level 0 regions have to be added before the first one is
+	rendered. If they are then rendered in Morton (Z) order, the regions below
+	each parent are rendered one after the other, so only the parents along
+	the current path through the quadtree (plus a few more per render thread)
+	are kept in memory, and each parent image is written exactly once.
+
+	That also holds when the region cache is over its budget: the parents
+	that are not finished yet are marked as unfinished in the RegionManager,
+	and are then only evicted to the off heap pixel store, or kept loaded if
+	there is none (or it is full). So the loaded regions can go over
+	maxLoadedBytes by the unfinished parents, rather than a parent being
+	saved, read back and saved again, with the tile hash manifest updated
+	for each of those writes.
+
+	The coordinates are region coordinates, i.e. the x and z from the
+	r.x.z.mca region file names.
+*/
+public class PyramidBuilder {
+
+	private final RegionManager regionManager;
+	private final int dimension;
+	private final int maxZoom;
+
+	// the number of zoom level 0 regions that have not been rendered yet
+	// below each parent, keyed by the parent region key.
+	private final Map<Long, AtomicInteger> pendingRegions = new ConcurrentHashMap<Long, AtomicInteger>();
+
+	public PyramidBuilder(RegionManager regionManager, int dimension) {
+		this.regionManager = regionManager;
+		this.dimension = dimension;
+		this.maxZoom = Region.maxZoom;
+	}
+
+	// interleave the bits of the region coordinates. the coordinates are
+	// offset so that negative coordinates sort before positive ones.
+	public static long getMortonCode(int rX, int rZ) {
+		return spreadBits((rX + 0x8000) & 0xffff) | (spreadBits((rZ + 0x8000) & 0xffff) << 1);
+	}
+
+	private static long spreadBits(long v) {
+		v = (v | (v << 8)) & 0x00ff00ffL;
+		v = (v | (v << 4)) & 0x0f0f0f0fL;
+		v = (v | (v << 2)) & 0x33333333L;
+		v = (v | (v << 1)) & 0x55555555L;
+		return v;
+	}
+
+	private long getParentKey(int rX, int rZ, int zoomLevel) {
+		return Region.getKey(rX << Region.SHIFT, rZ << Region.SHIFT, zoomLevel, this.dimension);
+	}
+
+	public void addRegion(int rX, int rZ) {
+		for (int zoomLevel = 1; zoomLevel <= this.maxZoom; zoomLevel++) {
+			long key = this.getParentKey(rX, rZ, zoomLevel);
+			AtomicInteger count = this.pendingRegions.get(key);
+			if (count == null) {
+				count = new AtomicInteger(0);
+				this.pendingRegions.put(key, count);
+				this.regionManager.setUnfinished(key, true);
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	// called once the zoom level 0 region has been rendered and unloaded.
+	// the parents are flushed from the lowest zoom level up, so a parent is
+	// only unloaded after all the parents below it have been unloaded.
+	public void regionDone(int rX, int rZ) {
+		for (int zoomLevel = 1; zoomLevel <= this.maxZoom; zoomLevel++) {
+			long key = this.getParentKey(rX, rZ, zoomLevel);
+			AtomicInteger count = this.pendingRegions.get(key);
+			if (count == null) {
+				RegionManager.logWarning("PyramidBuilder.regionDone: region (%d, %d) was not added", rX, rZ);
+				return;
+			}
+			// if a parent is not finished, the parents above it are not
+			// finished either, but their counts still need to be decremented
+			if (count.decrementAndGet() == 0) {
+				this.pendingRegions.remove(key);
+				this.regionManager.setUnfinished(key, false);
+				this.regionManager.unloadRegion(key);
+			}
+		}
+	}
+
+	public int getPendingParentCount() {
+		return this.pendingRegions.size();
+	}
+}
@@ -5,12 +5,18 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
 /*
 	MwRegion class
 	Represents a 32x32 chunk area (512x512 blocks).
+	
+	Regions may be updated from several render threads at once. The pixel
+	array is only ever allocated or loaded while holding the region's lock,
+	and each child region only writes to its own quadrant of the parent
+	pixels, so the updates from different threads never overlap.
 */
 public class Region {
 	
@@ -22,21 +28,29 @@ public class Region {
 	public static int maxZoom = 5;
 	public static int minZoom = -5;
 	
+	// the memory used by the pixel array of a loaded region
+	public static final long PIXEL_BYTES = 4L * SIZE * SIZE;
+	
 	public final int x;
 	public final int z;
 	public final int size;
 	public final int dimension;
 	public final int zoomLevel;
-	public final Long key;
+	public final long key;
 	public final File imageFile;
 	public final RegionFile regionFile;
 	
-	public Region nextZoomLevel;
+	public volatile Region nextZoomLevel;
 	private boolean cannotLoad = false;
-	int updateCount = 0;
-	int lastAccessedTick = 0;
-	private int refCount = 0;
-	private int[] pixels = null;
+	private final AtomicInteger updateCount = new AtomicInteger(0);
+	volatile int lastAccessedTick = 0;
+	private final AtomicInteger refCount = new AtomicInteger(0);
+	private final AtomicInteger pinCount = new AtomicInteger(0);
+	private volatile int[] pixels = null;
+	
+	// links of the RegionManager's least recently used list, guarded by the manager's lock
+	Region cachePrev = null;
+	Region cacheNext = null;
 	
 	public Region(RegionManager regionManager, int x, int z, int zoomLevel, int dimension) {
 		
@@ -55,7 +69,7 @@ public class Region {
 		
 		if (this.zoomLevel < maxZoom) {
 			this.nextZoomLevel = this.regionManager.getRegion(this.x, this.z, this.zoomLevel + 1, this.dimension);
-			this.nextZoomLevel.refCount++;
+			this.nextZoomLevel.refCount.incrementAndGet();
 		} else {
 			this.nextZoomLevel = null;
 		}
@@ -64,7 +78,7 @@ public class Region {
 		//MwUtil.log("created region %s", this);
 	}
 	
-	public void close() {
+	public synchronized void close() {
 		//RegionManager.logInfo("closing region %s", this);
 		if (this.needsSaving()) {
 			this.saveToImage();
@@ -73,11 +87,11 @@ public class Region {
 			this.regionFile.close();
 		}
 		if (this.nextZoomLevel != null) {
-			this.nextZoomLevel.refCount--;
+			this.nextZoomLevel.refCount.decrementAndGet();
 			this.nextZoomLevel = null;
 		}
-		this.pixels = null;
-		this.updateCount = 0;
+		this.setPixels(null);
+		this.updateCount.set(0);
 	}
 	
 	public boolean isLoaded() {
@@ -85,16 +99,78 @@ public class Region {
 	}
 	
 	public int getRefCount() {
-		return this.refCount;
+		return this.refCount.get();
 	}
 	
-	public int[] allocatePixels() {
-		this.pixels = new int[Region.SIZE * Region.SIZE];
+	// a pinned region is not unloaded when the region cache is over its
+	// memory budget, e.g. while a render thread is still updating it.
+	// regions with loaded regions below them (refCount > 0) are pinned too.
+	public void pin() {
+		this.pinCount.incrementAndGet();
+	}
+	
+	public void unpin() {
+		this.pinCount.decrementAndGet();
+	}
+	
+	public boolean isPinned() {
+		return (this.pinCount.get() > 0) || (this.refCount.get() > 0);
+	}
+	
+	// all changes to the pixel array go through here, so that the region
+	// manager can keep count of the memory used by the loaded regions, and
+	// the arrays of unloaded regions go back to the pixel buffer pool
+	private void setPixels(int[] pixels) {
+		if ((this.pixels == null) && (pixels != null)) {
+			this.regionManager.addLoadedPixelBytes(PIXEL_BYTES);
+		} else if ((this.pixels != null) && (pixels == null)) {
+			this.regionManager.addLoadedPixelBytes(-PIXEL_BYTES);
+			this.regionManager.pixelBufferPool.release(this.pixels);
+		}
+		this.pixels = pixels;
+	}
+	
+	public synchronized int[] allocatePixels() {
+		// a loaded region keeps its array, as the callers may still hold it
+		int[] pixels = this.pixels;
+		if (pixels == null) {
+			pixels = this.regionManager.pixelBufferPool.acquire();
+		}
 		Arrays.fill(pixels, 0xff000000);
-		return this.pixels;
+		this.setPixels(pixels);
+		return pixels;
 	}
 	
-	public int[] getPixels() {
+	// move the pixels of a modified region to the off heap pixel store instead
+	// of saving them. returns false if the region was not stored.
+	synchronized boolean storeOffHeap(OffHeapPixelStore store) {
+		if (!this.needsSaving() || (this.pixels == null) ||
+				!store.put(this.key, this.imageFile, this.zoomLevel, this.pixels)) {
+			return false;
+		}
+		// the stored pixels are saved by the store, or loaded again by the
+		// next region object with this key
+		this.updateCount.set(0);
+		this.close();
+		return true;
+	}
+	
+	private boolean loadFromOffHeapStore() {
+		OffHeapPixelStore store = this.regionManager.offHeapPixelStore;
+		if ((store == null) || !store.contains(this.key)) {
+			return false;
+		}
+		int[] pixels = this.allocatePixels();
+		if (!store.take(this.key, pixels)) {
+			this.setPixels(null);
+			return false;
+		}
+		// the pixels have not been saved yet
+		this.updateCount.set(1);
+		return true;
+	}
+	
+	public synchronized int[] getPixels() {
 		this.setAccessed();
 		if (this.pixels == null) {
 			this.load();
@@ -102,7 +178,7 @@ public class Region {
 		return this.pixels;
 	}
 	
-	public int[] getOrAllocatePixels() {
+	public synchronized int[] getOrAllocatePixels() {
 		int[] pixels = this.getPixels();
 		if (pixels == null) {
 			pixels = this.allocatePixels();
@@ -170,16 +246,15 @@ public class Region {
 		return equal;
 	}
 	
-	public static Long getKey(int x, int z, int zoomLevel, int dimension) {
+	public static long getKey(int x, int z, int zoomLevel, int dimension) {
 		x = (x >> (Region.SHIFT + zoomLevel)) & 0xffff;
 		z = (z >> (Region.SHIFT + zoomLevel)) & 0xffff;
 		zoomLevel = zoomLevel & 0xff;
 		dimension = dimension & 0xff;
-		return Long.valueOf(
-				(((long) dimension) << 40) |
+		return (((long) dimension) << 40) |
 				(((long) zoomLevel) << 32) |
 				(((long) z) << 16) |
-				((long) x));
+				((long) x);
 	}
 	
 	public int getPixelOffset(int x, int z) {
@@ -194,11 +269,11 @@ public class Region {
 	}
 	
 	public boolean isModified() {
-		return (this.updateCount > 0);
+		return (this.updateCount.get() > 0);
 	}
 	
 	public void setUpdated() {
-		this.updateCount++;
+		this.updateCount.incrementAndGet();
 		this.setAccessed();
 	}
 	
@@ -206,15 +281,15 @@ public class Region {
 		this.lastAccessedTick = this.regionManager.getCurrentTick();
 	}
 	
-	public void setSaved() {
-		this.updateCount = 0;
+	public synchronized void setSaved() {
+		this.updateCount.set(0);
 		this.cannotLoad = false;
 	}
 	
 	public boolean needsSaving() {
 		// regions at zoom level 0 do not need to be saved
 		// (the chunks are saved separately)
-		return (this.updateCount > 0) && (this.zoomLevel > 0);
+		return (this.updateCount.get() > 0) && (this.zoomLevel > 0);
 	}
 	
 	// returns true if chunk not updated
@@ -249,6 +324,16 @@ public class Region {
 		this.updateZoomLevels(this.x, this.z, this.size, this.size);
 	}
 	
+	// update the zoom levels for the chunks flagged in changedChunks,
+	// which is indexed by (cz << 5) | cx.
+	public void updateZoomLevels(boolean[] changedChunks) {
+		for (int i = 0; i < changedChunks.length; i++) {
+			if (changedChunks[i]) {
+				this.updateZoomLevels(this.x + ((i & 31) << 4), this.z + ((i >> 5) << 4), MwChunk.SIZE, MwChunk.SIZE);
+			}
+		}
+	}
+	
 	public static int getAverageOfPixelQuad(int[] pixels, int offset, int scanSize) {
 		int p00 = pixels[offset];
 		int p01 = pixels[offset + 1];
@@ -267,6 +352,7 @@ public class Region {
 	
 	// x, z, w, h, in world block coordinates
 	public boolean updateNextZoomLevel(int x, int z, int w, int h) {
+		long startTime = RenderMetrics.start();
 		boolean error = true;
 		Region dstRegion = this.nextZoomLevel;
 		int[] srcPixels = this.getPixels();
@@ -298,53 +384,206 @@ public class Region {
 			error = false;
 		}
 		
+		RenderMetrics.stop(RenderMetrics.Stage.ZOOM_UPDATE, startTime);
 		return error;
 	}
 	
 	private void loadFromRegionFile() {
 		if (this.regionFileExists()) {
+			if (!this.regionFile.isOpen()) {
+				this.regionFile.open();
+			}
+			if (this.regionFile.isEmpty()) {
+				// no chunks, so leave the pixels unallocated. the region is
+				// then left out of the zoom levels and no images are written.
+				return;
+			}
+			// with sector ordered reads the compressed data of all the chunks is
+			// read first, and the chunks are decoded from it
+			byte[][] compressedChunks = RegionFile.sectorOrderedReads ? this.regionFile.getAllCompressedChunkData() : null;
+			if (this.regionManager.chunkRenderer != null) {
+				// read all the chunks first, so that they can be rendered in parallel
+				MwChunk[] chunks = new MwChunk[1024];
+				for (int i = 0; i < chunks.length; i++) {
+					chunks[i] = this.readChunk(compressedChunks, i & 31, i >> 5);
+				}
+				this.regionManager.chunkRenderer.render(this.regionManager.blockColours, chunks, this.allocatePixels());
+				return;
+			}
 			int[] pixels = this.allocatePixels();
 			for (int cz = 0; cz < 32; cz++) {
 				for (int cx = 0; cx < 32; cx++) {
 					// load chunk from anvil file
-					MwChunk chunk = MwChunk.read(cx, cz, this.dimension, this.regionFile);
-					if (!chunk.isEmpty()) {
-						int offset = ((cz << 4) << Region.SHIFT) + (cx << 4);
-						// hopefully accessing the non final field blockColours from a separate
-						// thread will be fine. All threads should be shut down before it is ever closed.
-						ChunkToPixels.getMapPixels(this.regionManager.blockColours, chunk, pixels, offset, Region.SIZE);
-					}
+					this.renderChunk(pixels, this.readChunk(compressedChunks, cx, cz), cx, cz);
 				}
 			}
 		}
 	}
 	
+	private MwChunk readChunk(byte[][] compressedChunks, int cx, int cz) {
+		if (compressedChunks != null) {
+			int i = (cz << 5) | cx;
+			byte[] data = compressedChunks[i];
+			// the compressed data is not needed any more once decoded
+			compressedChunks[i] = null;
+			return MwChunk.read(cx, cz, this.dimension, data);
+		}
+		return MwChunk.read(cx, cz, this.dimension, this.regionFile);
+	}
+	
+	private void renderChunk(int[] pixels, MwChunk chunk, int cx, int cz) {
+		if ((chunk != null) && !chunk.isEmpty()) {
+			int offset = ((cz << 4) << Region.SHIFT) + (cx << 4);
+			// hopefully accessing the non final field blockColours from a separate
+			// thread will be fine. All threads should be shut down before it is ever closed.
+			ChunkToPixels.getMapPixels(this.regionManager.blockColours, chunk, pixels, offset, Region.SIZE);
+		}
+	}
+	
+	// render a zoom level 0 region from chunks that were already read from its
+	// region file, indexed by (cz << 5) | cx. null chunks means that the region
+	// file has no chunks, which leaves the pixels unallocated like reload() does.
+	public synchronized void reload(MwChunk[] chunks) {
+		this.updateCount.set(0);
+		if ((this.zoomLevel == 0) && (chunks != null)) {
+			int[] pixels = this.allocatePixels();
+			if (this.regionManager.chunkRenderer != null) {
+				this.regionManager.chunkRenderer.render(this.regionManager.blockColours, chunks, pixels);
+				return;
+			}
+			for (int i = 0; i < chunks.length; i++) {
+				this.renderChunk(pixels, chunks[i], i & 31, i >> 5);
+			}
+		}
+	}
+	
+	public synchronized int[] getChunkTimestamps() {
+		if (!this.regionFile.isOpen() && this.regionFile.exists()) {
+			this.regionFile.open();
+		}
+		return this.regionFile.isOpen() ? this.regionFile.getChunkTimestamps() : null;
+	}
+	
+	private void restoreChunkHeights(int cx, int cz) {
+		MwChunk chunk = MwChunk.read(cx, cz, this.dimension, this.regionFile);
+		if (!chunk.isEmpty()) {
+			int offset = ((cz << 4) << Region.SHIFT) + (cx << 4);
+			ChunkToPixels.getMapHeights(this.regionManager.blockColours, chunk, this.pixels, offset, Region.SIZE);
+		}
+	}
+	
+	// re-render only the chunks whose timestamp differs from the timestamp they
+	// were last rendered with, on top of the previously saved zoom level 0 image.
+	// returns the re-rendered chunks as flags indexed by (cz << 5) | cx, or null
+	// if the whole region had to be reloaded from the region file.
+	public synchronized boolean[] reloadChangedChunks(int[] renderedTimestamps, int[] timestamps) {
+		if ((this.zoomLevel != 0) || (renderedTimestamps == null) || (timestamps == null)) {
+			this.reload();
+			return null;
+		}
+		
+		this.updateCount.set(0);
+		this.loadFromImageFile();
+		if (this.pixels == null) {
+			this.reload();
+			return null;
+		}
+		
+		// the height shading of a chunk depends on the heights of its west and
+		// north neighbours, so the east and south neighbours of a changed chunk
+		// have to be re-rendered too.
+		boolean[] changedChunks = new boolean[1024];
+		for (int i = 0; i < 1024; i++) {
+			if (timestamps[i] != renderedTimestamps[i]) {
+				changedChunks[i] = true;
+				if ((i & 31) < 31) {
+					changedChunks[i + 1] = true;
+				}
+				if (i < (1024 - 32)) {
+					changedChunks[i + 32] = true;
+				}
+			}
+		}
+		
+		// the saved image has no heights in the alpha channel, so restore them for
+		// the unchanged chunks that the changed chunks take their shading from.
+		// the chunks are rendered in the same order as in loadFromRegionFile.
+		boolean[] heightsRestored = new boolean[1024];
+		int[] pixels = this.pixels;
+		for (int i = 0; i < 1024; i++) {
+			if (changedChunks[i]) {
+				int cx = i & 31;
+				int cz = i >> 5;
+				if ((cx > 0) && !changedChunks[i - 1] && !heightsRestored[i - 1]) {
+					this.restoreChunkHeights(cx - 1, cz);
+					heightsRestored[i - 1] = true;
+				}
+				if ((cz > 0) && !changedChunks[i - 32] && !heightsRestored[i - 32]) {
+					this.restoreChunkHeights(cx, cz - 1);
+					heightsRestored[i - 32] = true;
+				}
+				
+				int offset = ((cz << 4) << Region.SHIFT) + (cx << 4);
+				for (int z = 0; z < MwChunk.SIZE; z++) {
+					Arrays.fill(pixels, offset + (z << Region.SHIFT), offset + (z << Region.SHIFT) + MwChunk.SIZE, 0xff000000);
+				}
+				
+				MwChunk chunk = MwChunk.read(cx, cz, this.dimension, this.regionFile);
+				if (!chunk.isEmpty()) {
+					ChunkToPixels.getMapPixels(this.regionManager.blockColours, chunk, pixels, offset, Region.SIZE);
+				}
+			}
+		}
+		
+		return changedChunks;
+	}
+	
 	private void loadFromImageFile() {
+		if (!this.imageFile.isFile()) {
+			return;
+		}
+		
+		// decode our own images directly into the pixel array, and only fall
+		// back to ImageIO for images in other formats.
+		int[] pixels = this.allocatePixels();
+		boolean loaded = false;
+		try {
+			loaded = PngCodec.read(this.imageFile, pixels, Region.SIZE, Region.SIZE);
+		} catch (IOException e) {
+			loaded = false;
+		}
+		if (!loaded && !this.loadFromImageFileWithImageIO(pixels)) {
+			this.setPixels(null);
+		}
+	}
+	
+	private boolean loadFromImageFileWithImageIO(int[] pixels) {
 		BufferedImage img = null;
 		try {
 			img = ImageIO.read(this.imageFile);
 		} catch (IOException e) {
 			img = null;
 		}
-		int[] pixels = null;
+		boolean loaded = false;
 		if (img != null) {
 			if ((img.getWidth() == Region.SIZE) && (img.getHeight() == Region.SIZE)) {
-				pixels = this.allocatePixels();
 				img.getRGB(0, 0, Region.SIZE, Region.SIZE,
 						pixels, 0, Region.SIZE);
+				loaded = true;
 			} else {
 				RegionManager.logWarning("MwRegion.load: image '%s' has invalid dimensions (%dx%d)", this.imageFile, img.getWidth(), img.getHeight());
 			}
 		}
+		return loaded;
 	}
 	
-	public void reload() {
-		this.updateCount = 0;
+	public synchronized void reload() {
+		this.updateCount.set(0);
 		
 		//RegionManager.logInfo("loading region %s", this);
 		if (this.zoomLevel == 0) {
 			this.loadFromRegionFile();
-		} else {
+		} else if (!this.loadFromOffHeapStore()) {
 			this.loadFromImageFile();
 		}
 		//this.updateZoomLevels(this.x, this.z, this.size, this.size);
@@ -361,13 +600,10 @@ public class Region {
 		this.cannotLoad = (this.pixels == null);
 	}
 	
-	public void saveToImage() {
+	public synchronized void saveToImage() {
+		long startTime = RenderMetrics.start();
 		int[] pixels = this.getPixels();
 		if (pixels != null) {
-			BufferedImage img = new BufferedImage(Region.SIZE, Region.SIZE, BufferedImage.TYPE_INT_RGB);
-			img.setRGB(0, 0, Region.SIZE, Region.SIZE,
-				pixels, 0, Region.SIZE);
-			
 			// write the given image to the image file
 			File dir = this.imageFile.getParentFile();
 			if (!dir.exists()) {
@@ -376,11 +612,12 @@ public class Region {
 			
 			try {
 				//MwUtil.log("writing region %s to %s", this, this.imageFile);
-				ImageIO.write(img, "png", this.imageFile);
+				PngCodec.write(pixels, Region.SIZE, Region.SIZE, this.imageFile, this.zoomLevel);
 			} catch (IOException e) {
 				RegionManager.logError("MwRegion.writeImage: error: could not write image to %s", this.imageFile.getName());
 			}
 		}
 		this.setSaved();
+		RenderMetrics.stop(RenderMetrics.Stage.IMAGE_SAVE, startTime);
 	}
 }
@@ -0,0 +1,180 @@
+package mapwriter.region;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+	The regions known to a RegionManager, keyed by the primitive long region
+	keys, in order of use.
+
+	The regions are kept in an open addressing hash table (linear probing,
+	with backward shift deletion so no tombstones are needed) and in a doubly
+	linked list through the regions themselves, with the most recently used
+	region at the head. All operations are O(1).
+
+	Not thread safe, the RegionManager only uses it while holding its lock.
+*/
+class RegionCache {
+
+	private long[] keys;
+	private Region[] values;
+	private int mask;
+	private int size = 0;
+
+	// most recently used at the head, least recently used at the tail
+	private Region head = null;
+	private Region tail = null;
+
+	RegionCache() {
+		this.allocate(256);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new Region[capacity];
+		this.mask = capacity - 1;
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private int findSlot(long key) {
+		int slot = hash(key) & this.mask;
+		while ((this.values[slot] != null) && (this.keys[slot] != key)) {
+			slot = (slot + 1) & this.mask;
+		}
+		return slot;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public Region get(long key) {
+		return this.values[this.findSlot(key)];
+	}
+
+	// add a region as the most recently used, replacing any region with the same key
+	public void put(Region region) {
+		if ((this.size + 1) * 2 > this.values.length) {
+			this.grow();
+		}
+		int slot = this.findSlot(region.key);
+		if (this.values[slot] != null) {
+			this.unlink(this.values[slot]);
+		} else {
+			this.size++;
+		}
+		this.keys[slot] = region.key;
+		this.values[slot] = region;
+		this.linkAtHead(region);
+	}
+
+	private void grow() {
+		long[] oldKeys = this.keys;
+		Region[] oldValues = this.values;
+		this.allocate(oldValues.length * 2);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = this.findSlot(oldKeys[i]);
+				this.keys[slot] = oldKeys[i];
+				this.values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	public Region remove(long key) {
+		int slot = this.findSlot(key);
+		Region region = this.values[slot];
+		if (region != null) {
+			this.unlink(region);
+			this.values[slot] = null;
+			this.size--;
+
+			// move back the following entries of the probe sequence that
+			// would no longer be found with the gap at 'slot'
+			int gap = slot;
+			int i = (slot + 1) & this.mask;
+			while (this.values[i] != null) {
+				int home = hash(this.keys[i]) & this.mask;
+				if (((i - home) & this.mask) >= ((i - gap) & this.mask)) {
+					this.keys[gap] = this.keys[i];
+					this.values[gap] = this.values[i];
+					this.values[i] = null;
+					gap = i;
+				}
+				i = (i + 1) & this.mask;
+			}
+		}
+		return region;
+	}
+
+	// mark the region as the most recently used
+	public void touch(Region region) {
+		if (this.head != region) {
+			this.unlink(region);
+			this.linkAtHead(region);
+		}
+	}
+
+	private void linkAtHead(Region region) {
+		region.cachePrev = null;
+		region.cacheNext = this.head;
+		if (this.head != null) {
+			this.head.cachePrev = region;
+		}
+		this.head = region;
+		if (this.tail == null) {
+			this.tail = region;
+		}
+	}
+
+	private void unlink(Region region) {
+		if (region.cachePrev != null) {
+			region.cachePrev.cacheNext = region.cacheNext;
+		} else if (this.head == region) {
+			this.head = region.cacheNext;
+		}
+		if (region.cacheNext != null) {
+			region.cacheNext.cachePrev = region.cachePrev;
+		} else if (this.tail == region) {
+			this.tail = region.cachePrev;
+		}
+		region.cachePrev = null;
+		region.cacheNext = null;
+	}
+
+	public Region getLeastRecentlyUsed() {
+		return this.tail;
+	}
+
+	// the next more recently used region, or null for the head
+	public Region getMoreRecentlyUsed(Region region) {
+		return region.cachePrev;
+	}
+
+	public List<Region> getRegions() {
+		List<Region> regions = new ArrayList<Region>(this.size);
+		for (Region region = this.head; region != null; region = region.cacheNext) {
+			regions.add(region);
+		}
+		return regions;
+	}
+
+	public void clear() {
+		for (Region region = this.head; region != null; ) {
+			Region next = region.cacheNext;
+			region.cachePrev = null;
+			region.cacheNext = null;
+			region = next;
+		}
+		this.head = null;
+		this.tail = null;
+		this.allocate(256);
+		this.size = 0;
+	}
+}
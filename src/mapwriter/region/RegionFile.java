@@ -1,18 +1,15 @@
 package mapwriter.region;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.List;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.BitSet;
 
 /* Anvil region file reader/writer implementation.
  *
@@ -23,13 +20,103 @@ import java.util.zip.InflaterInputStream;
 
 public class RegionFile {
 	
+	// how region files are read. the FileChannel based modes are read only,
+	// but allow several threads to read chunks from the same file at once.
+	public enum ReadMode {
+		// seek and read through a RandomAccessFile
+		RANDOM_ACCESS_FILE("raf"),
+		// positional reads from a FileChannel, one read per chunk
+		CHANNEL("channel"),
+		// memory map the whole file. the JDK has no supported way to unmap a
+		// file, so the mapping is only released when the garbage collector
+		// gets to it, and until then the file can not be deleted or replaced
+		// on Windows. files opened for writing are never mapped.
+		MAPPED("mmap");
+		
+		public final String name;
+		
+		ReadMode(String name) {
+			this.name = name;
+		}
+		
+		public static ReadMode fromName(String name) {
+			for (ReadMode mode : ReadMode.values()) {
+				if (mode.name.equalsIgnoreCase(name)) {
+					return mode;
+				}
+			}
+			return null;
+		}
+	}
+	
+	public static ReadMode readMode = ReadMode.RANDOM_ACCESS_FILE;
+	
+	// read all the chunks of a region file at once, in the order of their
+	// sectors and in a few large reads (see getAllCompressedChunkData), rather
+	// than one chunk at a time in the order of the chunk grid.
+	public static boolean sectorOrderedReads = false;
+	
+	// the most sectors of unused or unwanted data between two chunks that are
+	// read over instead of starting a new read, as a seek costs more.
+	private static final int MAX_GAP_SECTORS = 32;
+	// the most sectors read at once. a file this size or smaller (a chunk takes
+	// at most 255 sectors) is read in one go.
+	private static final int MAX_READ_SECTORS = 256;
+	
+	// when the chunks written to a file are made durable on disk
+	public enum SyncPolicy {
+		// leave it to the operating system
+		NONE("none"),
+		// fsync when the file is flushed or closed
+		CLOSE("close"),
+		// fsync after every chunk, with its header entry written right away
+		CHUNK("chunk");
+		
+		public final String name;
+		
+		SyncPolicy(String name) {
+			this.name = name;
+		}
+		
+		public static SyncPolicy fromName(String name) {
+			for (SyncPolicy policy : SyncPolicy.values()) {
+				if (policy.name.equalsIgnoreCase(name)) {
+					return policy;
+				}
+			}
+			return null;
+		}
+	}
+	
+	public static SyncPolicy syncPolicy = SyncPolicy.NONE;
+	
+	// batch the writes of a file opened for writing: the chunks appended one
+	// after the other are written together in writes of up to MAX_WRITE_SECTORS,
+	// and the chunk and timestamp tables are written once when the file is
+	// flushed or closed instead of after every chunk. for writing whole region
+	// files, the file is only valid once it has been flushed.
+	public static boolean batchedWrites = false;
+	
+	private static final int MAX_WRITE_SECTORS = 256;
+	
 	private final File file;
 	private int lengthInSectors = 0;
+	private long fileLength = 0;
 	private RandomAccessFile fin = null;
+	private FileChannel channel = null;
+	private ByteBuffer mappedBuffer = null;
+	private boolean writable = false;
 	
 	private Section[] chunkSectionsArray = new Section[4096];
 	private int[] timestampArray = new int[4096];
-	private List<Boolean> filledSectorArray = null;
+	// the sectors used by the chunks, the header sectors 0 and 1 are not included
+	private final BitSet usedSectors = new BitSet();
+	// the header has changed since it was last written (with batchedWrites)
+	private boolean headerDirty = false;
+	// the chunk data waiting to be written, from pendingStartSector on (with batchedWrites)
+	private byte[] pendingData = null;
+	private int pendingStartSector = 0;
+	private int pendingLength = 0;
 	
 	private class Section {
 		final int startSector;
@@ -59,101 +146,72 @@ public class RegionFile {
 	}
 	
 	public boolean isOpen() {
-		return (this.fin != null);
+		return (this.fin != null) || (this.channel != null);
+	}
+	
+	public boolean isWritable() {
+		return this.writable && this.isOpen();
 	}
 	
-	// set the corresponding bits in filledSectorArray to 'filled'
-	// for 'count' sectors, starting at 'firstSector'.
-	private void setFilledSectorArray(Section section, boolean filled) {
+	// mark the sectors of a section as used or free
+	private void setSectorsUsed(Section section, boolean used) {
 		int endSector = section.startSector + section.length;
-		int sectorsToAppend = endSector + 1 - this.filledSectorArray.size();
-		for (int i = 0; i < sectorsToAppend; i++) {
-			this.filledSectorArray.add(Boolean.valueOf(false));
-		}
-		for (int i = section.startSector; i < endSector; i++) {
-			if (filled && this.filledSectorArray.get(i)) {
-				RegionManager.logError("sector %d already filled, possible chunk overlap", i);
-			}
-			this.filledSectorArray.set(i, Boolean.valueOf(filled));
+		if (used && this.checkSectionOverlaps(section)) {
+			RegionManager.logError("sectors %d to %d already used, possible chunk overlap", section.startSector, endSector - 1);
 		}
+		this.usedSectors.set(section.startSector, endSector, used);
 	}
 	
 	private boolean checkSectionOverlaps(Section section) {
-		// get end sector, limiting to length of the filled sector array as all sectors past the
-		// end of the file are assumed free.
-		int endSector = Math.min(section.startSector + section.length, this.filledSectorArray.size());
-		boolean overlaps = false;
-		for (int i = section.startSector; i < endSector; i++) {
-			if (this.filledSectorArray.get(i)) {
-				overlaps = true;
-			}
-		}
-		return overlaps;
+		int usedSector = this.usedSectors.nextSetBit(section.startSector);
+		return (usedSector >= 0) && (usedSector < section.startSector + section.length);
 	}
 	
 	private Section getFreeSection(int requiredLength) {
-		int start = 0;
-		int length = 0;
-		int closestStart = 0;
+		// use the smallest run of free sectors between the used sectors that is
+		// large enough, the idea is to use an empty block of exactly the required
+		// length rather than one that is larger. the BitSet skips over the used
+		// and free sectors a word at a time.
+		int closestStart = -1;
 		int closestLength = Integer.MAX_VALUE;
+		int usedEnd = this.usedSectors.length();
 		// start at 2 to skip headers
-		int i;
-		for (i = 2; i < this.filledSectorArray.size(); i++) {
-			if (this.filledSectorArray.get(i)) {
-				// sector filled
-				// if the length of the empty block we found is greater than or
-				// equal to the required length, and is closer to the required
-				// length than the previous found length, then set this as the
-				// new closest length.
-				// the idea is to use an empty block of exactly the required
-				// length, rather than one that is larger.
-				if ((length >= requiredLength) && (length < closestLength)) {
-					closestLength = length;
-					closestStart = start;
-					// if we find an empty block of exactly the correct length
-					// then exit the loop.
-					if (closestLength == requiredLength) {
-						break;
-					}
+		int start = this.usedSectors.nextClearBit(2);
+		while (start < usedEnd) {
+			int end = this.usedSectors.nextSetBit(start);
+			int length = end - start;
+			if ((length >= requiredLength) && (length < closestLength)) {
+				closestLength = length;
+				closestStart = start;
+				if (closestLength == requiredLength) {
+					break;
 				}
-				length = 0;
-			} else {
-				// sector empty
-				if (length == 0) {
-					start = i;
-				}
-				length++;
 			}
+			start = this.usedSectors.nextClearBit(end);
 		}
 		
-		if (closestStart <= 0) {
+		if (closestStart < 0) {
 			// append to end of file
-			closestStart = i;
+			closestStart = Math.max(2, usedEnd);
 		}
 		
 		return new Section(closestStart, requiredLength);
 	}
 	
 	public void printInfo() {
-		int freeCount = 0;
-		int filledCount = 0;
+		int sectorCount = Math.max(this.lengthInSectors, this.usedSectors.length());
 		// start at 2 to skip headers
-		for (int i = 2; i < this.filledSectorArray.size(); i++) {
-			if (this.filledSectorArray.get(i)) {
-				filledCount++;
-			} else {
-				freeCount++;
-			}
-		}
+		int filledCount = this.usedSectors.get(2, Math.max(2, sectorCount)).cardinality();
+		int freeCount = Math.max(0, sectorCount - 2) - filledCount;
 		RegionManager.logInfo("Region File %s: filled sectors = %d, free sectors = %d", this, filledCount, freeCount);
 		
 		String s = "";
 		int i;
-		for (i = 0; i < this.filledSectorArray.size(); i++) {
+		for (i = 0; i < sectorCount; i++) {
 			if ((i & 31) == 0) {
 				s = String.format("%04x:", i);
 			}
-			s += this.filledSectorArray.get(i) ? '1' : '0';
+			s += this.usedSectors.get(i) ? '1' : '0';
 			if ((i & 31) == 31) {
 				RegionManager.logInfo("%s", s);
 			}
@@ -163,23 +221,104 @@ public class RegionFile {
 		}
 	}
 	
+	// true if the header does not list any chunks, or the file is not open.
+	public boolean isEmpty() {
+		for (int i = 0; i < 1024; i++) {
+			if (this.chunkSectionsArray[i] != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// get the last modification time stored in the header for the chunk,
+	// 0 if the chunk is not present or the file is not open.
+	public int getChunkTimestamp(int x, int z) {
+		return this.timestampArray[((z & 31) << 5) | (x & 31)];
+	}
+	
+	// returns a copy of the 32x32 chunk timestamp table, indexed by
+	// ((z & 31) << 5) | (x & 31).
+	public int[] getChunkTimestamps() {
+		return Arrays.copyOf(this.timestampArray, 1024);
+	}
+	
 	private Section getChunkSection(int x, int z) {
 		return this.chunkSectionsArray[((z & 31) << 5) | (x & 31)];
 	}
 	
 	private void updateChunkSection(int x, int z, Section newSection) throws IOException {
 		int chunkIndex = ((z & 31) << 5) | (x & 31);
-		this.fin.seek(chunkIndex * 4);
-		if ((newSection != null) && (newSection.length > 0)) {
-			this.fin.writeInt(newSection.getSectorAndSize());
+		// the last modification time of the chunk, in seconds
+		int timestamp = (int) (System.currentTimeMillis() / 1000L);
+		this.chunkSectionsArray[chunkIndex] = newSection;
+		this.timestampArray[chunkIndex] = timestamp;
+		
+		if (batchedWrites && (syncPolicy != SyncPolicy.CHUNK)) {
+			// written by flush()
+			this.headerDirty = true;
 		} else {
-			this.fin.writeInt(0);
+			byte[] entry = new byte[4];
+			putInt(entry, 0, ((newSection != null) && (newSection.length > 0)) ? newSection.getSectorAndSize() : 0);
+			this.fin.seek(chunkIndex * 4);
+			this.fin.write(entry);
+			putInt(entry, 0, timestamp);
+			this.fin.seek(4096 + (chunkIndex * 4));
+			this.fin.write(entry);
 		}
-		
-		this.chunkSectionsArray[chunkIndex] = newSection;
 	}
 	
+	private static void putInt(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value >> 24);
+		buf[offset + 1] = (byte) (value >> 16);
+		buf[offset + 2] = (byte) (value >> 8);
+		buf[offset + 3] = (byte) value;
+	}
+	
+	// write the chunk data and header that are still waiting to be written
+	// (with batchedWrites), and fsync the file unless the sync policy is NONE.
+	// the chunk data is synced before the header is written, so the header
+	// never points to chunk data that is not on disk yet. returns true on error.
+	public boolean flush() {
+		if (!this.isWritable()) {
+			return false;
+		}
+		boolean error = true;
+		try {
+			this.writePendingData();
+			if (this.headerDirty) {
+				if (syncPolicy != SyncPolicy.NONE) {
+					this.fin.getChannel().force(true);
+				}
+				byte[] header = new byte[8192];
+				for (int i = 0; i < 1024; i++) {
+					Section section = this.chunkSectionsArray[i];
+					putInt(header, i * 4, ((section != null) && (section.length > 0)) ? section.getSectorAndSize() : 0);
+					putInt(header, 4096 + (i * 4), this.timestampArray[i]);
+				}
+				this.fin.seek(0);
+				this.fin.write(header);
+				this.headerDirty = false;
+			}
+			if (syncPolicy != SyncPolicy.NONE) {
+				this.fin.getChannel().force(true);
+			}
+			error = false;
+		} catch (IOException e) {
+			RegionManager.logError("could not flush region file %s: %s", this, e);
+		}
+		return error;
+	}
+	
+	// returns true on error
 	public boolean open() {
+		return this.open(false);
+	}
+	
+	// open the file for reading and writing chunks, creating it if it does not
+	// exist. writing always uses a RandomAccessFile, whatever the read mode.
+	// returns true on error.
+	public boolean open(boolean writable) {
 		File dir = this.file.getParentFile();
 		if (dir.exists()) {
 			if (!dir.isDirectory()) {
@@ -193,140 +332,359 @@ public class RegionFile {
 			}
 		}
 		try {
-			this.fin = new RandomAccessFile(this.file, "r");
-			
-			// seek to start 
-			this.fin.seek(0);
+			if (writable || (readMode == ReadMode.RANDOM_ACCESS_FILE)) {
+				this.fin = new RandomAccessFile(this.file, writable ? "rw" : "r");
+				this.writable = writable;
+				this.fileLength = this.fin.length();
+			} else {
+				this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+				this.fileLength = this.channel.size();
+				if (readMode == ReadMode.MAPPED) {
+					this.mappedBuffer = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.fileLength);
+				}
+			}
 			
-			this.lengthInSectors = (int) ((this.fin.length() + 4095L) / 4096L);
+			this.lengthInSectors = (int) ((this.fileLength + 4095L) / 4096L);
 			
-			this.filledSectorArray = new ArrayList<Boolean>();
+			this.usedSectors.clear();
+			this.headerDirty = false;
+			this.pendingLength = 0;
 			
 			Arrays.fill(this.chunkSectionsArray, null);
 			Arrays.fill(this.timestampArray, 0);
 			
 			if (this.lengthInSectors < 3) {
-				// no chunk data
-				// fill chunk and timestamp tables with 0's
-				for (int i = 0; i < 2048; i++) {
-					this.fin.writeInt(0);
+				// no chunk data, the chunk and timestamp tables are left empty.
+				// a writable file gets empty tables, so the chunks go after them.
+				if (writable) {
+					this.fin.setLength(0);
+					this.fin.write(new byte[8192]);
+					this.fileLength = 8192;
+					this.lengthInSectors = 2;
 				}
 			} else {
+				// read the chunk and timestamp tables in one go
+				byte[] headerBytes = new byte[8192];
+				this.readBytes(0, headerBytes, headerBytes.length);
+				ByteBuffer header = ByteBuffer.wrap(headerBytes);
+				
 				// add a section for each chunk
 				for (int i = 0; i < 1024; i++) {
-					Section section = new Section(this.fin.readInt());
+					Section section = new Section(header.getInt(i * 4));
 					if (section.length > 0) {
 						// make sure chunk does not overlap another
 						if (!checkSectionOverlaps(section)) {
 							this.chunkSectionsArray[i] = section;
-							this.setFilledSectorArray(section, true);
+							this.setSectorsUsed(section, true);
 						} else {
 							RegionManager.logError("chunk %d overlaps another chunk, file may be corrupt", i);
 						}
 					}
 				}
 				for (int i = 0; i < 1024; i++) {
-					this.timestampArray[i] = this.fin.readInt();
+					this.timestampArray[i] = header.getInt(4096 + (i * 4));
 				}
 			}
 			
 			//this.printInfo();
 			
 		} catch (Exception e) {
-			this.fin = null;
+			this.close();
 			RegionManager.logError("exception when opening region file '%s': %s", this.file, e);
 			
 		}
 		
-		return this.fin == null;
+		return !this.isOpen();
 	}
 	
 	public void close() {
+		if (this.isWritable()) {
+			this.flush();
+		}
 		if (this.fin != null) {
 			try { this.fin.close(); }
 			catch (IOException e) {}
+			this.fin = null;
 		}
+		if (this.channel != null) {
+			try { this.channel.close(); }
+			catch (IOException e) {}
+			this.channel = null;
+		}
+		// the mapping stays until the buffer is garbage collected, unmapping
+		// it here would crash a thread that is still reading from it
+		this.mappedBuffer = null;
+		this.writable = false;
+		this.headerDirty = false;
+		this.pendingData = null;
+		this.pendingLength = 0;
 	}
 	
-	public DataInputStream getChunkDataInputStream(int x, int z) {
-		DataInputStream dis = null;
-		if (this.fin != null) {
-			Section section = getChunkSection(x, z);
+	// read 'length' bytes starting at 'position' into buf, or up to the end of
+	// the file if it is shorter. returns the number of bytes read. the
+	// FileChannel based modes do not change any shared state, so they can be
+	// used from several threads at once.
+	private int readBytes(long position, byte[] buf, int length) throws IOException {
+		// chunks written with batchedWrites are read back from the file
+		this.writePendingData();
+		length = (int) Math.max(0, Math.min(length, this.fileLength - position));
+		if (this.mappedBuffer != null) {
+			ByteBuffer src = this.mappedBuffer.duplicate();
+			src.position((int) position);
+			src.get(buf, 0, length);
+		} else if (this.channel != null) {
+			ByteBuffer dst = ByteBuffer.wrap(buf, 0, length);
+			while (dst.hasRemaining()) {
+				if (this.channel.read(dst, position + dst.position()) < 0) {
+					break;
+				}
+			}
+			length = dst.position();
+		} else {
+			this.fin.seek(position);
+			this.fin.readFully(buf, 0, length);
+		}
+		return length;
+	}
+	
+	// check the length and version at the start of the data of a chunk, which
+	// starts at data[offset] with 'available' bytes of it read. the data starts
+	// with the length of the following data (includes version byte) and the
+	// compressed data version byte. returns the length of the compressed data,
+	// which starts at data[offset + 5], or -1 if the chunk data is invalid.
+	private int checkChunkData(int x, int z, Section section, byte[] data, int offset, int available) {
+		int length = 0;
+		byte version = 0;
+		if (available >= 5) {
+			length = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+			version = data[offset + 4];
+		}
+		// version 1 = gzip compressed, version 2 = zlib/inflater compressed
+		if ((length > 1) && ((length + 4) < (section.length * 4096)) && ((length + 4) <= available) && (version == 2)) {
+			RenderMetrics.bytesRead.add(length + 4);
+			return length - 1;
+		}
+		RegionManager.logError("data length (%d) or version (%d) invalid for chunk (%d, %d)", length, version, x, z);
+		return -1;
+	}
+	
+	// read all the sectors of a chunk at once into the input buffer of the
+	// ChunkInflater. returns the length of the compressed data, which starts at
+	// byte 5 of the buffer, or -1 if the chunk does not exist or its data is
+	// invalid.
+	private int readChunkSectors(int x, int z, ChunkInflater inflater) throws IOException {
+		Section section = getChunkSection(x, z);
+		if ((section == null) || (section.length <= 0)) {
+			return -1;
+		}
+		byte[] data = inflater.getInputBuffer(section.length * 4096);
+		int n = this.readBytes(((long) section.startSector) * 4096L, data, section.length * 4096);
+		return this.checkChunkData(x, z, section, data, 0, n);
+	}
+	
+	// read and inflate the data of a chunk with the buffers and Inflater of
+	// the calling thread (see ChunkInflater). the returned reader is only valid
+	// until the next chunk is read or inflated on this thread. returns null if
+	// the chunk does not exist or its data is invalid.
+	public ByteArrayDataInput getChunkDataInput(int x, int z) {
+		ChunkInflater inflater = ChunkInflater.get();
+		long startTime = RenderMetrics.start();
+		int length = -1;
+		try {
+			length = this.readChunkSectors(x, z, inflater);
+		} catch (IOException e) {
+			RegionManager.logError("exception while reading chunk (%d, %d): %s", x, z, e);
+		}
+		RenderMetrics.stop(RenderMetrics.Stage.REGION_FILE_READ, startTime);
+		
+		ByteArrayDataInput in = null;
+		if (length > 0) {
+			try {
+				in = inflater.inflate(inflater.getInputBuffer(), 5, length);
+			} catch (IOException e) {
+				RegionManager.logError("exception while inflating chunk (%d, %d): %s", x, z, e);
+			}
+		}
+		return in;
+	}
+	
+	// read the zlib compressed data of a chunk without inflating it, so that
+	// the chunk can be decoded later or on another thread (see MwChunk.read).
+	// returns null if the chunk does not exist or its data is invalid.
+	public byte[] getCompressedChunkData(int x, int z) {
+		ChunkInflater inflater = ChunkInflater.get();
+		long startTime = RenderMetrics.start();
+		byte[] compressedChunkData = null;
+		try {
+			int length = this.readChunkSectors(x, z, inflater);
+			if (length > 0) {
+				compressedChunkData = Arrays.copyOfRange(inflater.getInputBuffer(), 5, 5 + length);
+			}
+		} catch (IOException e) {
+			RegionManager.logError("exception while reading chunk (%d, %d): %s", x, z, e);
+		}
+		RenderMetrics.stop(RenderMetrics.Stage.REGION_FILE_READ, startTime);
+		return compressedChunkData;
+	}
+	
+	// read the compressed data of all the chunks, indexed by (z << 5) | x, with
+	// null for the chunks that do not exist or have invalid data. the chunks
+	// are read in the order of their sectors, and chunks that are close
+	// together in the file are read together, so that the file takes a few
+	// large sequential reads rather than a seek and a read for every chunk.
+	public byte[][] getAllCompressedChunkData() {
+		long startTime = RenderMetrics.start();
+		byte[][] chunks = new byte[1024][];
+		
+		// sort the chunks by their first sector, the sections do not overlap
+		long[] order = new long[1024];
+		int count = 0;
+		for (int i = 0; i < 1024; i++) {
+			Section section = this.chunkSectionsArray[i];
 			if ((section != null) && (section.length > 0)) {
-				int offset = section.startSector * 4096;
-				try {
-					// read length of following data (includes version byte) and compressed data version byte
-					this.fin.seek(offset);
-					int length = this.fin.readInt();
-					byte version = this.fin.readByte();
-					// version 1 = gzip compressed, version 2 = zlib/inflater compressed
-					if ((length > 1) && ((length + 4) < (section.length * 4096)) && (version == 2)) {
-						// read the compressed data
-						byte[] compressedChunkData = new byte[length - 1];
-						this.fin.read(compressedChunkData);
-						// create a buffered inflater stream on the compressed data
-						dis = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(compressedChunkData))));
-					} else {
-						RegionManager.logError("data length (%d) or version (%d) invalid for chunk (%d, %d)", length, version, x, z);
+				order[count++] = (((long) section.startSector) << 10) | i;
+			}
+		}
+		Arrays.sort(order, 0, count);
+		
+		ChunkInflater inflater = ChunkInflater.get();
+		int first = 0;
+		while (first < count) {
+			// add the following chunks to the read while the gap before them
+			// is small and the read stays under MAX_READ_SECTORS
+			Section firstSection = this.chunkSectionsArray[(int) (order[first] & 1023)];
+			int startSector = firstSection.startSector;
+			int endSector = startSector + firstSection.length;
+			int last = first + 1;
+			while (last < count) {
+				Section section = this.chunkSectionsArray[(int) (order[last] & 1023)];
+				if (((section.startSector - endSector) > MAX_GAP_SECTORS) ||
+						((section.startSector + section.length - startSector) > MAX_READ_SECTORS)) {
+					break;
+				}
+				endSector = section.startSector + section.length;
+				last++;
+			}
+			
+			try {
+				int length = (endSector - startSector) * 4096;
+				byte[] data = inflater.getInputBuffer(length);
+				int n = this.readBytes(((long) startSector) * 4096L, data, length);
+				for (int j = first; j < last; j++) {
+					int i = (int) (order[j] & 1023);
+					Section section = this.chunkSectionsArray[i];
+					int offset = (section.startSector - startSector) * 4096;
+					int compressedLength = this.checkChunkData(i & 31, i >> 5, section, data, offset, Math.max(0, n - offset));
+					if (compressedLength > 0) {
+						chunks[i] = Arrays.copyOfRange(data, offset + 5, offset + 5 + compressedLength);
 					}
-				} catch (Exception e) {
-					RegionManager.logError("exception while reading chunk (%d, %d): %s", x, z, e);
-					dis = null;
 				}
+			} catch (IOException e) {
+				RegionManager.logError("exception while reading sectors %d to %d of region file %s: %s", startSector, endSector, this, e);
 			}
+			first = last;
 		}
-		return dis;
+		
+		RenderMetrics.stop(RenderMetrics.Stage.REGION_FILE_READ, startTime);
+		return chunks;
 	}
 	
-	// basically an in memory byte array that writes its contents
-	// to a file when it is closed.
+	// basically an in memory byte array that compresses its contents and
+	// writes them to a file when it is closed. the array is the reusable
+	// input buffer of the ChunkDeflater of the thread.
 	private class RegionFileChunkBuffer extends ByteArrayOutputStream {
 	    private final int x;
 	    private final int z;
 	    private final RegionFile regionFile;
+	    private final ChunkDeflater deflater;
+	    private boolean closed = false;
 
 	    public RegionFileChunkBuffer(RegionFile regionFile, int x, int z) {
-	        super(8096);
+	        super(0);
 	        this.regionFile = regionFile;
 	        this.x = x;
 	        this.z = z;
+	        this.deflater = ChunkDeflater.get();
+	        this.buf = this.deflater.getInputBuffer();
 	    }
 
 	    public void close() {
-	    	this.regionFile.writeCompressedChunk(this.x, this.z, this.buf, this.count);
+	    	if (!this.closed) {
+	    		this.closed = true;
+	    		// keep the buffer if it grew
+	    		this.deflater.setInputBuffer(this.buf);
+	    		int length = this.deflater.deflate(this.buf, 0, this.count);
+	    		this.regionFile.writeCompressedChunk(this.x, this.z, this.deflater.getOutput(), length);
+	    	}
 	    }
 	}
 	
+	// the data written to the stream is compressed and written to the file when
+	// the stream is closed. a thread must close the stream before it gets the
+	// next one, as they share the buffers of the thread's ChunkDeflater.
 	public DataOutputStream getChunkDataOutputStream(int x, int z) {
-		return new DataOutputStream(new DeflaterOutputStream(new RegionFileChunkBuffer(this, x, z)));
-	}
-	
-	/*private int padToSectorSize() throws IOException {
-		// pad with 0 so that the file length is a multiple of 4096 bytes
-		long paddedLength = (this.length + 4095L) & (-4096L);
-		this.fin.seek(this.length);
-		for (long i = this.length; i < paddedLength; i++) {
-			this.fin.writeByte(0);
-		}
-		this.length = paddedLength;
-		return (int) (paddedLength / 4096);
-	}*/
-	
-	private void writeChunkDataToSection(Section section, byte[] compressedChunkData, int length) throws IOException {
-		this.fin.seek(((long) section.startSector) * 4096L);
-		// write version and length
-		this.fin.writeInt(length + 1);
-		this.fin.writeByte(2);
-		// write compressed data
-		this.fin.write(compressedChunkData, 0, length);
+		return new DataOutputStream(new RegionFileChunkBuffer(this, x, z));
+	}
+	
+	// write the sectors of a chunk, the compressed data starts at byte 5 of
+	// chunkData and the array has room to pad it to whole sectors.
+	private void writeChunkDataToSection(Section section, byte[] chunkData, int length) throws IOException {
+		// write length (includes version byte) and version
+		putInt(chunkData, 0, length + 1);
+		chunkData[4] = 2;
+		// pad with 0 to a whole number of sectors, so that the chunk is
+		// written with a single write and the file length stays a
+		// multiple of 4096 bytes
+		int paddedLength = section.length * 4096;
+		Arrays.fill(chunkData, ChunkDeflater.HEADER_SIZE + length, paddedLength, (byte) 0);
 		
-		int endSector = section.startSector + section.length;
-		if ((endSector + 1) > this.lengthInSectors) {
-			this.lengthInSectors = endSector + 1;
+		if (batchedWrites && (syncPolicy != SyncPolicy.CHUNK)) {
+			if ((this.pendingLength > 0) &&
+					((section.startSector != this.pendingStartSector + (this.pendingLength / 4096)) ||
+					((this.pendingLength + paddedLength) > (MAX_WRITE_SECTORS * 4096)))) {
+				this.writePendingData();
+			}
+			if (this.pendingLength == 0) {
+				this.pendingStartSector = section.startSector;
+			}
+			if ((this.pendingData == null) || (this.pendingData.length < this.pendingLength + paddedLength)) {
+				this.pendingData = Arrays.copyOf((this.pendingData != null) ? this.pendingData : new byte[0],
+						Math.max(this.pendingLength + paddedLength, MAX_WRITE_SECTORS * 4096));
+			}
+			System.arraycopy(chunkData, 0, this.pendingData, this.pendingLength, paddedLength);
+			this.pendingLength += paddedLength;
+		} else {
+			this.writeSectors(section.startSector, chunkData, paddedLength);
+			if (syncPolicy == SyncPolicy.CHUNK) {
+				this.fin.getChannel().force(true);
+			}
+		}
+	}
+	
+	private void writePendingData() throws IOException {
+		if (this.pendingLength > 0) {
+			this.writeSectors(this.pendingStartSector, this.pendingData, this.pendingLength);
+			this.pendingLength = 0;
+		}
+	}
+	
+	private void writeSectors(int startSector, byte[] data, int length) throws IOException {
+		this.fin.seek(((long) startSector) * 4096L);
+		this.fin.write(data, 0, length);
+		int endSector = startSector + (length / 4096);
+		if (endSector > this.lengthInSectors) {
+			this.lengthInSectors = endSector;
 		}
+		this.fileLength = Math.max(this.fileLength, ((long) endSector) * 4096L);
 	}
 	
-	private boolean writeCompressedChunk(int x, int z, byte[] compressedChunkData, int length) {
+	// the compressed data starts at byte 5 of chunkData, see ChunkDeflater
+	private boolean writeCompressedChunk(int x, int z, byte[] chunkData, int length) {
+		if (!this.isWritable()) {
+			RegionManager.logError("not writing chunk (%d, %d), region file %s is not open for writing", x, z, this);
+			return true;
+		}
+		
 		// if larger than the existing chunk data or chunk does not exist then need to find the
 		// first possible file position to write to. This will either be a contiguous strip of
 		// free sectors longer than the length of the chunk data, or the end of the file (append).
@@ -339,10 +697,10 @@ public class RegionFile {
 		// free the section this chunk currently occupies
 		Section currentSection = this.getChunkSection(x, z);
 		if (currentSection != null) {
-			this.setFilledSectorArray(currentSection, false);
+			this.setSectorsUsed(currentSection, false);
 		}
 		
-		int requiredSectors = (length + 5 + 4095) / 4096;
+		int requiredSectors = (length + ChunkDeflater.HEADER_SIZE + 4095) / 4096;
 		Section newSection;
 		
 		if ((currentSection != null) && (requiredSectors <= currentSection.length)) {
@@ -355,14 +713,17 @@ public class RegionFile {
 		}
 		
 		// set the new section to filled
-		this.setFilledSectorArray(newSection, true);
+		this.setSectorsUsed(newSection, true);
 		
 		boolean error = true;
 		try {
 			//RegionManager.logInfo("writing %d bytes to sector %d for chunk (%d,  %d)", length, newSection.startSector, x, z);
-			this.writeChunkDataToSection(newSection, compressedChunkData, length);
+			this.writeChunkDataToSection(newSection, chunkData, length);
 			// update the header
 			this.updateChunkSection(x, z, newSection);
+			if (syncPolicy == SyncPolicy.CHUNK) {
+				this.fin.getChannel().force(true);
+			}
 			error = false;
 		} catch (IOException e) {
 			RegionManager.logError("could not write chunk (%d, %d) to region file: %s", x, z, e);
@@ -1,23 +1,59 @@
 package mapwriter.region;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+/*
+	The region cache is guarded by the RegionManager's lock, so regions can be
+	requested and unloaded from several render threads at once. Regions are
+	closed (and saved) outside of the lock, except when they are evicted.
+	
+	The loaded regions are kept within a memory budget for their pixel
+	arrays (maxLoadedBytes). When a new region is requested while over the
+	budget, the least recently used regions that are loaded and not pinned
+	are saved and unloaded until the loaded regions fit again. Zoom levels
+	that a PyramidBuilder has not finished yet are only moved to the off heap
+	pixel store, or else kept loaded, so that they are not written before
+	they are finished and then read back (and quantized again, with indexed
+	colours) by the next region below them.
+*/
 public class RegionManager {
-	private final Map<Long, Region> regionMap;
+	private final RegionCache regionCache;
 	
 	public final File worldDir;
 	public final File imageDir;
 	public BlockColours blockColours;
 	public static Logger logger;
-	public final static int maxLoadedRegions = 128;
+	public static long maxLoadedBytes = 128L * Region.PIXEL_BYTES;
+	public static int maxPooledPixelBuffers = 16;
+	// the off heap pixel store is only used if this is more than 0
+	public static long maxOffHeapBytes = 0;
+	// the chunks of each region are rendered by this many threads, with the
+	// two pass rendering, if this is more than 1
+	public static int chunkRenderThreads = 1;
+	
+	final PixelBufferPool pixelBufferPool;
+	final OffHeapPixelStore offHeapPixelStore;
+	final ChunkRenderer chunkRenderer;
 	
 	//private int regionArraySize;
 	//private Region[] regionArray;
-	private int currentTick = 0;
+	private final AtomicInteger currentTick = new AtomicInteger(0);
+	private final AtomicLong loadedPixelBytes = new AtomicLong(0);
+	private long cacheHits = 0;
+	private long cacheMisses = 0;
+	private long cacheEvictions = 0;
+	private boolean overBudgetWarned = false;
+	// the keys of the zoom level regions with regions left to render below them
+	private final Set<Long> unfinishedRegions = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 	
 	public static void logInfo(String s, Object...args) {
 		if (logger != null) {
@@ -41,31 +77,57 @@ public class RegionManager {
 		this.worldDir = worldDir;
 		this.imageDir = imageDir;
 		this.blockColours = blockColours;
-		this.regionMap = new HashMap<Long, Region>();
+		this.regionCache = new RegionCache();
+		this.pixelBufferPool = new PixelBufferPool(Region.SIZE * Region.SIZE, maxPooledPixelBuffers);
+		this.offHeapPixelStore = (maxOffHeapBytes > 0) ? new OffHeapPixelStore(Region.SIZE * Region.SIZE, maxOffHeapBytes) : null;
+		this.chunkRenderer = (chunkRenderThreads > 1) ? new ChunkRenderer(chunkRenderThreads) : null;
 	}
 	
-	public void close() {
-		for (Region region : this.regionMap.values()) {
-			if (region != null) {
-				region.close();
-			}
+	public synchronized void close() {
+		for (Region region : this.regionCache.getRegions()) {
+			region.close();
+		}
+		this.regionCache.clear();
+		
+		if (this.offHeapPixelStore != null) {
+			int[] buffer = this.pixelBufferPool.acquire();
+			this.offHeapPixelStore.writeAll(buffer);
+			this.pixelBufferPool.release(buffer);
 		}
-		this.regionMap.clear();
 	}
 	
-	public void saveUpdatedRegions() {
-		for (Region region : this.regionMap.values()) {
-	        if ((region != null) && region.needsSaving()) {
+	public synchronized void saveUpdatedRegions() {
+		for (Region region : this.regionCache.getRegions()) {
+	        if (region.needsSaving()) {
 				region.saveToImage();
 			}
 	    }
 	}
 	
 	public void unloadRegion(Region region) {
-		this.regionMap.remove(region.key);
+		synchronized (this) {
+			// the region may already have been evicted and loaded again
+			if (this.regionCache.get(region.key) == region) {
+				this.regionCache.remove(region.key);
+			}
+		}
 		region.close();
 	}
 	
+	// save and unload the region with the given key, if it is loaded or in
+	// the off heap pixel store
+	public void unloadRegion(long key) {
+		Region region = this.getLoadedRegion(key);
+		if (region != null) {
+			this.unloadRegion(region);
+		}
+		if (this.offHeapPixelStore != null) {
+			int[] buffer = this.pixelBufferPool.acquire();
+			this.offHeapPixelStore.writeRegion(key, buffer);
+			this.pixelBufferPool.release(buffer);
+		}
+	}
+	
 	private static int incrStatsCounter(Map<String, Integer> h, String key) {
 		int n = 1;
 		if (h.containsKey(key)) {
@@ -75,10 +137,10 @@ public class RegionManager {
 		return n;
 	}
 	
-	public void printLoadedRegionStats() {
+	public synchronized void printLoadedRegionStats() {
 		logInfo("loaded region listing:");
 		Map<String, Integer> stats = new HashMap<String, Integer>();
-		for (Region region : this.regionMap.values()) {
+		for (Region region : this.regionCache.getRegions()) {
 			logInfo("  %s %d %d", region, region.lastAccessedTick, region.getRefCount());
 			incrStatsCounter(stats, String.format("dim%d", region.dimension));
 			incrStatsCounter(stats, String.format("zoom%d", region.zoomLevel));
@@ -90,42 +152,83 @@ public class RegionManager {
 		}
 	}
 	
-	public Region getLeastAccessedRegion() {
-		int minLastAccessedTick = this.currentTick;
-		Region leastAccessedRegion = null;
-		for (Region region : this.regionMap.values()) {
-	        if ((region != null) && (region.getRefCount() <= 0) && (region.lastAccessedTick < minLastAccessedTick)) {
-				minLastAccessedTick = region.lastAccessedTick;
-				leastAccessedRegion = region;
-			}
-	    }
-		return leastAccessedRegion;
-	}
-	
-	public int pruneRegions() {
+	// unload the least recently used regions that are loaded and not pinned
+	// until the pixel arrays of the loaded regions fit in maxLoadedBytes.
+	// the regions are closed while holding the lock, so that they can't be
+	// requested again while they are being saved.
+	public synchronized int pruneRegions() {
 		int unloadedCount = 0;
-		int unloadAttemptCount = this.regionMap.size() - maxLoadedRegions;
-		for (int i = 0; i < unloadAttemptCount; i++) {
-			Region region = this.getLeastAccessedRegion();
-			if (region != null) {
-				this.unloadRegion(region);
-				unloadedCount++;
+		Region region = this.regionCache.getLeastRecentlyUsed();
+		while ((region != null) && (this.loadedPixelBytes.get() > maxLoadedBytes)) {
+			Region next = this.regionCache.getMoreRecentlyUsed(region);
+			// regions without pixels use next to no memory, and a zoom level 0
+			// region being created may not have been pinned yet
+			if (region.isLoaded() && !region.isPinned()) {
+				boolean stored = (this.offHeapPixelStore != null) && region.storeOffHeap(this.offHeapPixelStore);
+				// an unfinished region with changes is only unloaded if it could
+				// be stored off heap, closing it would save it
+				if (stored || !region.needsSaving() || !this.unfinishedRegions.contains(region.key)) {
+					this.regionCache.remove(region.key);
+					if (!stored) {
+						region.close();
+					}
+					this.cacheEvictions++;
+					unloadedCount++;
+				}
 			}
+			region = next;
 		}
 		
-		//if (unloadedCount > 0) {
-		//	this.printLoadedRegionStats();
-		//}
-		
-		if (this.regionMap.size() > maxLoadedRegions) {
-			RegionManager.logWarning("unable to close enough regions (%d regions loaded, limit is %d)", this.regionMap.size(), maxLoadedRegions);
+		if ((this.loadedPixelBytes.get() > maxLoadedBytes) && !this.overBudgetWarned) {
+			RegionManager.logWarning("unable to close enough regions (%d MB loaded, limit is %d MB)",
+					this.loadedPixelBytes.get() >> 20, maxLoadedBytes >> 20);
 			this.printLoadedRegionStats();
+			this.overBudgetWarned = true;
 		}
 		return unloadedCount;
 	}
 	
+	// see PyramidBuilder
+	void setUnfinished(long key, boolean unfinished) {
+		if (unfinished) {
+			this.unfinishedRegions.add(key);
+		} else {
+			this.unfinishedRegions.remove(key);
+		}
+	}
+	
+	void addLoadedPixelBytes(long bytes) {
+		this.loadedPixelBytes.addAndGet(bytes);
+	}
+	
+	public long getLoadedPixelBytes() {
+		return this.loadedPixelBytes.get();
+	}
+	
+	public synchronized long getCacheHits() {
+		return this.cacheHits;
+	}
+	
+	public synchronized long getCacheMisses() {
+		return this.cacheMisses;
+	}
+	
+	public synchronized long getCacheEvictions() {
+		return this.cacheEvictions;
+	}
+	
+	public synchronized void logCacheStats() {
+		logInfo("region cache: %d hits, %d misses, %d evictions, %d regions (%d MB) loaded",
+				this.cacheHits, this.cacheMisses, this.cacheEvictions,
+				this.regionCache.size(), this.loadedPixelBytes.get() >> 20);
+		this.pixelBufferPool.logStats();
+		if (this.offHeapPixelStore != null) {
+			this.offHeapPixelStore.logStats();
+		}
+	}
+	
 	public int getCurrentTick() {
-		return this.currentTick;
+		return this.currentTick.get();
 	}
 	
 	public File getDimensionDir(int dimension) {
@@ -139,18 +242,30 @@ public class RegionManager {
 	}
 	
 	// must not return null
-	public Region getRegion(int x, int z, int zoomLevel, int dimension) {
-		Region region = this.regionMap.get(Region.getKey(x, z, zoomLevel, dimension));
-		if (region == null) {
-			// add region
+	public synchronized Region getRegion(int x, int z, int zoomLevel, int dimension) {
+		Region region = this.regionCache.get(Region.getKey(x, z, zoomLevel, dimension));
+		if (region != null) {
+			this.regionCache.touch(region);
+			this.cacheHits++;
+		} else {
+			// add region, the constructor also adds the next zoom levels
 			region = new Region(this, x, z, zoomLevel, dimension);
-			this.regionMap.put(region.key, region);
-			this.currentTick++;
+			this.regionCache.put(region);
+			this.cacheMisses++;
+			if (this.loadedPixelBytes.get() > maxLoadedBytes) {
+				this.pruneRegions();
+			}
 			//this.printLoadedRegionStats();
 		}
+		this.currentTick.incrementAndGet();
 		return region;
 	}
 	
+	// returns null if the region is not loaded
+	public synchronized Region getLoadedRegion(long key) {
+		return this.regionCache.get(key);
+	}
+	
 	public void updateChunk(MwChunk chunk) {	
 		Region region = this.getRegion(chunk.x << 4, chunk.z << 4, 0, chunk.dimension);
 		region.updateChunk(chunk);
@@ -0,0 +1,363 @@
+package mapwriter.region;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+	Counters and timers for the stages of a render run, cheap enough to be
+	always on: each timed call adds two System.nanoTime calls and two
+	LongAdder updates, which do not contend between the render threads.
+
+	The stage times are inclusive, e.g. chunk_read includes region_file_read
+	(and the inflating and NBT parsing of the chunk), and image_save and
+	tile_split include the PNG encoding. hillshade is only used by the two
+	pass chunk rendering (--chunk-threads), and is not in chunk_render. With
+	several render threads the stage times are summed over all threads, so
+	they can add up to more than the run time.
+
+	Usage:
+		long startTime = RenderMetrics.start();
+		...
+		RenderMetrics.stop(RenderMetrics.Stage.CHUNK_RENDER, startTime);
+*/
+public class RenderMetrics {
+
+	public enum Stage {
+		REGION_FILE_READ("region_file_read"),
+		CHUNK_READ("chunk_read"),
+		CHUNK_RENDER("chunk_render"),
+		HILLSHADE("hillshade"),
+		ZOOM_UPDATE("zoom_update"),
+		IMAGE_SAVE("image_save"),
+		TILE_SPLIT("tile_split");
+
+		public final String name;
+		final LongAdder count = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		public long getCount() {
+			return this.count.sum();
+		}
+
+		public long getNanos() {
+			return this.nanos.sum();
+		}
+	}
+
+	// a bounded queue between two stages of the pipelined render mode, named
+	// after the stage that takes from it. the time the producers wait on a
+	// full queue and the time the consumers wait on an empty queue show which
+	// side is the bottleneck.
+	public static final class QueueStats {
+		public final String name;
+		private volatile BlockingQueue<?> queue = null;
+		private volatile int capacity = 0;
+		private final AtomicInteger maxDepth = new AtomicInteger();
+		final LongAdder putWaitNanos = new LongAdder();
+		final LongAdder takeWaitNanos = new LongAdder();
+
+		QueueStats(String name) {
+			this.name = name;
+		}
+
+		// the queue to report the depth of, or null when no pipeline is running
+		public void setQueue(BlockingQueue<?> queue, int capacity) {
+			this.queue = queue;
+			this.capacity = (queue != null) ? capacity : this.capacity;
+		}
+
+		public int getDepth() {
+			BlockingQueue<?> queue = this.queue;
+			return (queue != null) ? queue.size() : 0;
+		}
+
+		public int getCapacity() {
+			return this.capacity;
+		}
+
+		public int getMaxDepth() {
+			return this.maxDepth.get();
+		}
+
+		// call after every put, with the time spent blocked in it
+		public void addPut(long waitNanos) {
+			this.putWaitNanos.add(waitNanos);
+			int depth = this.getDepth();
+			int max;
+			while (depth > (max = this.maxDepth.get()) && !this.maxDepth.compareAndSet(max, depth)) {
+			}
+		}
+
+		// call after every take, with the time spent blocked in it
+		public void addTake(long waitNanos) {
+			this.takeWaitNanos.add(waitNanos);
+		}
+	}
+
+	private static final List<QueueStats> queues = new CopyOnWriteArrayList<QueueStats>();
+
+	// the number of region files known, rendered and failed to render, for
+	// the progress and ETA
+	public static final LongAdder regionsTotal = new LongAdder();
+	public static final LongAdder regionsDone = new LongAdder();
+	public static final LongAdder regionsFailed = new LongAdder();
+	// the compressed chunk data read from the region files
+	public static final LongAdder bytesRead = new LongAdder();
+
+	private static volatile long runStartNanos = System.nanoTime();
+
+	// get the stats of the named queue, added on first use. the stats add up
+	// over all the pipelines of a run (one for each dimension).
+	public static synchronized QueueStats getQueueStats(String name) {
+		for (QueueStats stats : queues) {
+			if (stats.name.equals(name)) {
+				return stats;
+			}
+		}
+		QueueStats stats = new QueueStats(name);
+		queues.add(stats);
+		return stats;
+	}
+
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	public static void stop(Stage stage, long startNanos) {
+		stage.count.increment();
+		stage.nanos.add(System.nanoTime() - startNanos);
+	}
+
+	public static void reset() {
+		for (Stage stage : Stage.values()) {
+			stage.count.reset();
+			stage.nanos.reset();
+		}
+		regionsTotal.reset();
+		regionsDone.reset();
+		regionsFailed.reset();
+		bytesRead.reset();
+		queues.clear();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+		runStartNanos = System.nanoTime();
+	}
+
+	// the sum of the peak usages of the heap memory pools (eden, survivor and
+	// old generation) since the last reset. the pools peak at different times,
+	// so this is an upper bound of the peak heap usage, but it is good enough
+	// to compare runs with the same JVM settings.
+	public static long getPeakHeapBytes() {
+		long bytes = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				bytes += pool.getPeakUsage().getUsed();
+			}
+		}
+		return bytes;
+	}
+
+	public static double getElapsedSeconds() {
+		return (System.nanoTime() - runStartNanos) / 1.0e9;
+	}
+
+	private static String formatDuration(long seconds) {
+		if (seconds >= 3600) {
+			return String.format("%dh%02dm", seconds / 3600, (seconds / 60) % 60);
+		}
+		return String.format("%dm%02ds", seconds / 60, seconds % 60);
+	}
+
+	public static String getProgressLine() {
+		double elapsed = Math.max(getElapsedSeconds(), 1.0e-3);
+		long failed = regionsFailed.sum();
+		// the failed regions are done too, as far as the ETA goes
+		long done = regionsDone.sum() + failed;
+		long total = regionsTotal.sum();
+		long chunks = Stage.CHUNK_RENDER.getCount();
+		String eta = "unknown";
+		if ((done > 0) && (total >= done)) {
+			eta = formatDuration((long) (elapsed * (total - done) / done));
+		}
+		String line = String.format(Locale.ROOT, "progress: %d/%d regions%s, %d chunks, %.0f chunks/s, %.1f MB/s read, elapsed %s, ETA %s",
+				done, total, (failed > 0) ? String.format(Locale.ROOT, " (%d failed)", failed) : "", chunks, chunks / elapsed,
+				bytesRead.sum() / 1048576.0 / elapsed, formatDuration((long) elapsed), eta);
+		if (!queues.isEmpty()) {
+			StringBuilder sb = new StringBuilder(line).append(", queues");
+			for (QueueStats stats : queues) {
+				sb.append(String.format(Locale.ROOT, " %s %d/%d", stats.name, stats.getDepth(), stats.getCapacity()));
+			}
+			line = sb.toString();
+		}
+		return line;
+	}
+
+	public static void logStages() {
+		for (Stage stage : Stage.values()) {
+			long count = stage.getCount();
+			RegionManager.logInfo("%s: %d calls, %.1f s, %.3f ms per call", stage.name, count,
+					stage.getNanos() / 1.0e9, stage.getNanos() / 1.0e6 / Math.max(1, count));
+		}
+		for (QueueStats stats : queues) {
+			RegionManager.logInfo("%s queue: max depth %d/%d, %.1f s waiting to put, %.1f s waiting to take", stats.name,
+					stats.getMaxDepth(), stats.getCapacity(), stats.putWaitNanos.sum() / 1.0e9, stats.takeWaitNanos.sum() / 1.0e9);
+		}
+	}
+
+	// write the file through a temporary file, so that a scraper never
+	// reads a partly written file
+	private static PrintWriter openFile(File file) throws IOException {
+		return new PrintWriter(new File(file.getPath() + ".tmp"), "UTF-8");
+	}
+
+	private static void replaceFile(File file) {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		if ((file.exists() && !file.delete()) || !tmpFile.renameTo(file)) {
+			RegionManager.logError("Failed to replace the metrics file '%s'", file);
+		}
+	}
+
+	public static void writeJson(File file) {
+		PrintWriter w = null;
+		try {
+			w = openFile(file);
+			w.printf(Locale.ROOT, "{\n");
+			w.printf(Locale.ROOT, "  \"end_time\": %d,\n", System.currentTimeMillis() / 1000);
+			w.printf(Locale.ROOT, "  \"duration_seconds\": %.3f,\n", getElapsedSeconds());
+			w.printf(Locale.ROOT, "  \"regions_total\": %d,\n", regionsTotal.sum());
+			w.printf(Locale.ROOT, "  \"regions_rendered\": %d,\n", regionsDone.sum());
+			w.printf(Locale.ROOT, "  \"regions_failed\": %d,\n", regionsFailed.sum());
+			w.printf(Locale.ROOT, "  \"chunks_rendered\": %d,\n", Stage.CHUNK_RENDER.getCount());
+			w.printf(Locale.ROOT, "  \"bytes_read\": %d,\n", bytesRead.sum());
+			w.printf(Locale.ROOT, "  \"peak_heap_bytes\": %d,\n", getPeakHeapBytes());
+			w.printf(Locale.ROOT, "  \"stages\": {\n");
+			Stage[] stages = Stage.values();
+			for (int i = 0; i < stages.length; i++) {
+				w.printf(Locale.ROOT, "    \"%s\": {\"calls\": %d, \"seconds\": %.6f}%s\n", stages[i].name,
+						stages[i].getCount(), stages[i].getNanos() / 1.0e9, (i < stages.length - 1) ? "," : "");
+			}
+			w.printf(Locale.ROOT, "  },\n");
+			w.printf(Locale.ROOT, "  \"queues\": {\n");
+			for (int i = 0; i < queues.size(); i++) {
+				QueueStats stats = queues.get(i);
+				w.printf(Locale.ROOT, "    \"%s\": {\"capacity\": %d, \"max_depth\": %d, \"put_wait_seconds\": %.6f, \"take_wait_seconds\": %.6f}%s\n",
+						stats.name, stats.getCapacity(), stats.getMaxDepth(), stats.putWaitNanos.sum() / 1.0e9,
+						stats.takeWaitNanos.sum() / 1.0e9, (i < queues.size() - 1) ? "," : "");
+			}
+			w.printf(Locale.ROOT, "  },\n");
+			w.printf(Locale.ROOT, "  \"images\": {\n");
+			Map<Integer, PngCodec.Stats> imageStats = PngCodec.getStats();
+			int i = 0;
+			for (Entry<Integer, PngCodec.Stats> entry : imageStats.entrySet()) {
+				PngCodec.Stats stats = entry.getValue();
+				w.printf(Locale.ROOT, "    \"z%d\": {\"written\": %d, \"bytes\": %d, \"seconds\": %.6f, \"unchanged\": %d, \"empty\": %d}%s\n",
+						entry.getKey(), stats.images.get(), stats.bytes.get(), stats.nanos.get() / 1.0e9,
+						stats.unchanged.get(), stats.empty.get(), (++i < imageStats.size()) ? "," : "");
+			}
+			w.printf(Locale.ROOT, "  }\n");
+			w.printf(Locale.ROOT, "}\n");
+			w.close();
+			w = null;
+			replaceFile(file);
+		} catch (IOException e) {
+			RegionManager.logError("Failed to write the metrics file '%s': %s", file, e);
+		} finally {
+			if (w != null) {
+				w.close();
+			}
+		}
+	}
+
+	// the Prometheus text exposition format, e.g. for the node exporter's textfile collector
+	public static void writePrometheus(File file) {
+		PrintWriter w = null;
+		try {
+			w = openFile(file);
+			w.printf(Locale.ROOT, "# HELP anvilmapper_last_run_end_timestamp_seconds The time the last render run ended.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_last_run_end_timestamp_seconds gauge\n");
+			w.printf(Locale.ROOT, "anvilmapper_last_run_end_timestamp_seconds %d\n", System.currentTimeMillis() / 1000);
+			w.printf(Locale.ROOT, "# HELP anvilmapper_last_run_duration_seconds The duration of the last render run.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_last_run_duration_seconds gauge\n");
+			w.printf(Locale.ROOT, "anvilmapper_last_run_duration_seconds %.3f\n", getElapsedSeconds());
+			w.printf(Locale.ROOT, "# HELP anvilmapper_regions Region files in the last render run.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_regions gauge\n");
+			w.printf(Locale.ROOT, "anvilmapper_regions{state=\"total\"} %d\n", regionsTotal.sum());
+			w.printf(Locale.ROOT, "anvilmapper_regions{state=\"rendered\"} %d\n", regionsDone.sum());
+			w.printf(Locale.ROOT, "anvilmapper_regions{state=\"failed\"} %d\n", regionsFailed.sum());
+			w.printf(Locale.ROOT, "# HELP anvilmapper_chunks_rendered Chunks rendered in the last render run.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_chunks_rendered gauge\n");
+			w.printf(Locale.ROOT, "anvilmapper_chunks_rendered %d\n", Stage.CHUNK_RENDER.getCount());
+			w.printf(Locale.ROOT, "# HELP anvilmapper_read_bytes Compressed chunk data read in the last render run.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_read_bytes gauge\n");
+			w.printf(Locale.ROOT, "anvilmapper_read_bytes %d\n", bytesRead.sum());
+			w.printf(Locale.ROOT, "# HELP anvilmapper_peak_heap_bytes Upper bound of the peak heap usage in the last render run.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_peak_heap_bytes gauge\n");
+			w.printf(Locale.ROOT, "anvilmapper_peak_heap_bytes %d\n", getPeakHeapBytes());
+			w.printf(Locale.ROOT, "# HELP anvilmapper_stage_calls Calls of each render stage in the last render run.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_stage_calls gauge\n");
+			for (Stage stage : Stage.values()) {
+				w.printf(Locale.ROOT, "anvilmapper_stage_calls{stage=\"%s\"} %d\n", stage.name, stage.getCount());
+			}
+			w.printf(Locale.ROOT, "# HELP anvilmapper_stage_seconds Time spent in each render stage in the last render run, summed over all threads.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_stage_seconds gauge\n");
+			for (Stage stage : Stage.values()) {
+				w.printf(Locale.ROOT, "anvilmapper_stage_seconds{stage=\"%s\"} %.6f\n", stage.name, stage.getNanos() / 1.0e9);
+			}
+			if (!queues.isEmpty()) {
+				w.printf(Locale.ROOT, "# HELP anvilmapper_queue_max_depth Highest depth of each pipeline queue in the last render run.\n");
+				w.printf(Locale.ROOT, "# TYPE anvilmapper_queue_max_depth gauge\n");
+				for (QueueStats stats : queues) {
+					w.printf(Locale.ROOT, "anvilmapper_queue_max_depth{queue=\"%s\"} %d\n", stats.name, stats.getMaxDepth());
+				}
+				w.printf(Locale.ROOT, "# HELP anvilmapper_queue_wait_seconds Time blocked on each pipeline queue in the last render run, summed over all threads.\n");
+				w.printf(Locale.ROOT, "# TYPE anvilmapper_queue_wait_seconds gauge\n");
+				for (QueueStats stats : queues) {
+					w.printf(Locale.ROOT, "anvilmapper_queue_wait_seconds{queue=\"%s\",side=\"put\"} %.6f\n", stats.name, stats.putWaitNanos.sum() / 1.0e9);
+					w.printf(Locale.ROOT, "anvilmapper_queue_wait_seconds{queue=\"%s\",side=\"take\"} %.6f\n", stats.name, stats.takeWaitNanos.sum() / 1.0e9);
+				}
+			}
+			Map<Integer, PngCodec.Stats> imageStats = PngCodec.getStats();
+			w.printf(Locale.ROOT, "# HELP anvilmapper_images Images per zoom level in the last render run.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_images gauge\n");
+			for (Entry<Integer, PngCodec.Stats> entry : imageStats.entrySet()) {
+				PngCodec.Stats stats = entry.getValue();
+				w.printf(Locale.ROOT, "anvilmapper_images{zoom=\"%d\",state=\"written\"} %d\n", entry.getKey(), stats.images.get());
+				w.printf(Locale.ROOT, "anvilmapper_images{zoom=\"%d\",state=\"unchanged\"} %d\n", entry.getKey(), stats.unchanged.get());
+				w.printf(Locale.ROOT, "anvilmapper_images{zoom=\"%d\",state=\"empty\"} %d\n", entry.getKey(), stats.empty.get());
+			}
+			w.printf(Locale.ROOT, "# HELP anvilmapper_image_bytes Bytes of the images written per zoom level in the last render run.\n");
+			w.printf(Locale.ROOT, "# TYPE anvilmapper_image_bytes gauge\n");
+			for (Entry<Integer, PngCodec.Stats> entry : imageStats.entrySet()) {
+				w.printf(Locale.ROOT, "anvilmapper_image_bytes{zoom=\"%d\"} %d\n", entry.getKey(), entry.getValue().bytes.get());
+			}
+			w.close();
+			w = null;
+			replaceFile(file);
+		} catch (IOException e) {
+			RegionManager.logError("Failed to write the metrics file '%s': %s", file, e);
+		} finally {
+			if (w != null) {
+				w.close();
+			}
+		}
+	}
+}
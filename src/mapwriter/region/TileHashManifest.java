@@ -0,0 +1,167 @@
+package mapwriter.region;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+	Stores a hash of the pixels (and encoder settings) of every image written,
+	keyed by the image path relative to the base directory, so that images
+	whose pixels have not changed since the previous run are not encoded and
+	written again.
+
+	The paths of the images that were written or deleted during this run are collected
+	and can be written to a text file, one path per line, e.g. to purge them
+	from a cache.
+*/
+public class TileHashManifest {
+
+	private static final int MAGIC = 0x414d5448; // "AMTH"
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final String basePath;
+	private final Map<String, Long> hashes = new ConcurrentHashMap<String, Long>();
+	private final Set<String> changedPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public TileHashManifest(File file, File baseDir) {
+		this.file = file;
+		this.basePath = baseDir.getAbsolutePath() + File.separator;
+	}
+
+	public static long hashPixels(int[] pixels, int offset, int scanSize, int w, int h, long seed) {
+		long hash = seed ^ (((long) w << 32) | h);
+		for (int z = 0; z < h; z++) {
+			int p = offset + (z * scanSize);
+			for (int x = 0; x < w; x++) {
+				// the alpha channel is not written to the images
+				hash = Long.rotateLeft(hash ^ ((pixels[p + x] & 0xffffffL) * 0x9e3779b97f4a7c15L), 29) * 0xbf58476d1ce4e5b9L;
+			}
+		}
+		hash ^= hash >>> 31;
+		hash *= 0x94d049bb133111ebL;
+		return hash ^ (hash >>> 29);
+	}
+
+	private String getPath(File imageFile) {
+		String path = imageFile.getAbsolutePath();
+		if (path.startsWith(this.basePath)) {
+			path = path.substring(this.basePath.length());
+		}
+		return path.replace(File.separatorChar, '/');
+	}
+
+	// returns false if the image file exists and was written with the same hash
+	public boolean needsWriting(File imageFile, long hash) {
+		Long oldHash = this.hashes.get(this.getPath(imageFile));
+		return (oldHash == null) || (oldHash.longValue() != hash) || !imageFile.isFile();
+	}
+
+	public void setWritten(File imageFile, long hash) {
+		String path = this.getPath(imageFile);
+		this.hashes.put(path, hash);
+		this.changedPaths.add(path);
+	}
+
+	// the image file was deleted, which also counts as a change
+	public void setDeleted(File imageFile) {
+		String path = this.getPath(imageFile);
+		this.hashes.remove(path);
+		this.changedPaths.add(path);
+	}
+
+	public int getChangedCount() {
+		return this.changedPaths.size();
+	}
+
+	public void readFromFile() {
+		this.hashes.clear();
+		if (!this.file.isFile()) {
+			return;
+		}
+
+		DataInputStream data = null;
+		try {
+			data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(this.file))));
+			if ((data.readInt() != MAGIC) || (data.readInt() != VERSION)) {
+				RegionManager.logWarning("Ignoring the tile hash manifest '%s' with an unknown format", this.file);
+				return;
+			}
+			int count = data.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = data.readUTF();
+				this.hashes.put(path, data.readLong());
+			}
+		} catch (IOException e) {
+			RegionManager.logWarning("Failed to read the tile hash manifest '%s': %s", this.file, e);
+			this.hashes.clear();
+		} finally {
+			if (data != null) {
+				try { data.close(); } catch (IOException e) {}
+			}
+		}
+	}
+
+	public void writeToFile() {
+		// write to a temporary file first, so that an interrupted run
+		// can't leave behind a truncated manifest
+		File tmpFile = new File(this.file.getPath() + ".tmp");
+		DataOutputStream data = null;
+		try {
+			data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))));
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeInt(this.hashes.size());
+			for (Entry<String, Long> entry : this.hashes.entrySet()) {
+				data.writeUTF(entry.getKey());
+				data.writeLong(entry.getValue());
+			}
+			data.close();
+			data = null;
+
+			if ((this.file.exists() && !this.file.delete()) || !tmpFile.renameTo(this.file)) {
+				RegionManager.logError("Failed to replace the tile hash manifest '%s'", this.file);
+			}
+		} catch (IOException e) {
+			RegionManager.logError("Failed to write the tile hash manifest '%s': %s", this.file, e);
+		} finally {
+			if (data != null) {
+				try { data.close(); } catch (IOException e) {}
+			}
+		}
+	}
+
+	// write the sorted paths of the images written or deleted during this run
+	public void writeChangedList(File listFile) {
+		List<String> paths = new ArrayList<String>(this.changedPaths);
+		Collections.sort(paths);
+		PrintWriter writer = null;
+		try {
+			writer = new PrintWriter(listFile, "UTF-8");
+			for (String path : paths) {
+				writer.println(path);
+			}
+		} catch (IOException e) {
+			RegionManager.logError("Failed to write the changed tile list '%s': %s", listFile, e);
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+	}
+}